@@ -0,0 +1,155 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.beoui.geocell.GeocellUtils;
+import com.beoui.geocell.PackedGeocellUtils;
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.Tuple;
+
+/**
+ * Benchmarks of the GeocellUtils operations used by the searches, for each point distribution
+ * and a range of resolutions. Each invocation processes the next point of a fixed set, so the
+ * results average over the distribution instead of measuring one lucky point.
+ *
+ * Run with -prof gc to see the allocation rate (gc.alloc.rate.norm, bytes per operation)
+ * next to the time.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeocellUtilsBenchmark {
+
+    private static final int POINTS = 1024;
+    private static final int MASK = POINTS - 1;
+    private static final int[] NORTHEAST = new int[] {1, 1};
+    // Side of the interpolated grids, in cells.
+    private static final int GRID_SIDE = 3;
+
+    @Param({"CITY", "RURAL", "POLAR", "ANTIMERIDIAN"})
+    public PointDistribution distribution;
+
+    @Param({"1", "4", "8", "10", "13"})
+    public int resolution;
+
+    private Point[] points;
+    private String[] cells;
+    private String[] cellsNE;
+    private String[] cellsSW;
+    private List<String>[] regions;
+    private int index;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setUp() {
+        final double[][] coordinates = distribution.generate(POINTS);
+        points = new Point[POINTS];
+        cells = new String[POINTS];
+        cellsNE = new String[POINTS];
+        cellsSW = new String[POINTS];
+        regions = new List[POINTS];
+        for(int i = 0; i < POINTS; i++) {
+            points[i] = new Point(coordinates[0][i], coordinates[1][i]);
+            cells[i] = GeocellUtils.compute(points[i], resolution);
+
+            // A grid of GRID_SIDE x GRID_SIDE cells starting at the point, shifted south near the north pole.
+            final long cell = PackedGeocellUtils.fromString(cells[i]);
+            long ne = PackedGeocellUtils.adjacent(cell, GRID_SIDE - 1, GRID_SIDE - 1);
+            long sw = cell;
+            if(ne == PackedGeocellUtils.NO_CELL) {
+                ne = PackedGeocellUtils.adjacent(cell, GRID_SIDE - 1, 0);
+                sw = PackedGeocellUtils.adjacent(cell, 0, 1 - GRID_SIDE);
+            }
+            cellsNE[i] = PackedGeocellUtils.toString(ne);
+            cellsSW[i] = PackedGeocellUtils.toString(sw);
+            regions[i] = GeocellUtils.interpolate(cellsNE[i], cellsSW[i]);
+        }
+    }
+
+    private int next() {
+        return index = (index + 1) & MASK;
+    }
+
+    @Benchmark
+    public String compute() {
+        return GeocellUtils.compute(points[next()], resolution);
+    }
+
+    @Benchmark
+    public BoundingBox computeBox() {
+        return GeocellUtils.computeBox(cells[next()]);
+    }
+
+    @Benchmark
+    public String adjacent() {
+        return GeocellUtils.adjacent(cells[next()], NORTHEAST);
+    }
+
+    @Benchmark
+    public List<String> allAdjacents() {
+        return GeocellUtils.allAdjacents(cells[next()]);
+    }
+
+    @Benchmark
+    public List<String> interpolate() {
+        final int i = next();
+        return GeocellUtils.interpolate(cellsNE[i], cellsSW[i]);
+    }
+
+    @Benchmark
+    public int interpolationCount() {
+        final int i = next();
+        return GeocellUtils.interpolationCount(cellsNE[i], cellsSW[i]);
+    }
+
+    @Benchmark
+    public double distance() {
+        final int i = next();
+        return GeocellUtils.distance(points[i], points[(i + POINTS / 2) & MASK]);
+    }
+
+    @Benchmark
+    public double pointDistance() {
+        final int i = next();
+        return GeocellUtils.pointDistance(cells[i], points[(i + 1) & MASK]);
+    }
+
+    @Benchmark
+    public List<Tuple<int[], Double>> distanceSortedEdges() {
+        final int i = next();
+        return GeocellUtils.distanceSortedEdges(regions[i], points[i]);
+    }
+
+}
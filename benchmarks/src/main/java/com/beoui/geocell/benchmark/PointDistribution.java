@@ -0,0 +1,78 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.benchmark;
+
+import java.util.Random;
+
+/**
+ * Point sets the benchmarks run on, covering the special cases of the geocell grid.
+ *
+ */
+public enum PointDistribution {
+
+    /**
+     * Dense points around a city centre (Paris, about 20km wide).
+     */
+    CITY(48.75, 48.95, 2.2, 2.5),
+
+    /**
+     * Sparse points over a wide rural area (inland Australia).
+     */
+    RURAL(-32.0, -20.0, 125.0, 145.0),
+
+    /**
+     * Points near both poles, where the grid cells are the narrowest and adjacents get clipped.
+     */
+    POLAR(84.0, 90.0, -180.0, 180.0),
+
+    /**
+     * Points on both sides of the antimeridian, where adjacents and boxes wrap around.
+     */
+    ANTIMERIDIAN(-30.0, 30.0, 179.0, 181.0);
+
+    private final double south;
+    private final double north;
+    private final double west;
+    private final double east;
+
+    private PointDistribution(double south, double north, double west, double east) {
+        this.south = south;
+        this.north = north;
+        this.west = west;
+        this.east = east;
+    }
+
+    /**
+     * @return count points as {lats, lons}, the same for every run
+     */
+    public double[][] generate(int count) {
+        final Random random = new Random(42);
+        final double[] lats = new double[count];
+        final double[] lons = new double[count];
+        for(int i = 0; i < count; i++) {
+            double lat = south + random.nextDouble() * (north - south);
+            if(this == POLAR && random.nextBoolean()) {
+                lat = -lat;
+            }
+            double lon = west + random.nextDouble() * (east - west);
+            if(lon > 180.0) {
+                lon -= 360.0;
+            }
+            lats[i] = lat;
+            lons[i] = lon;
+        }
+        return new double[][] {lats, lons};
+    }
+
+}
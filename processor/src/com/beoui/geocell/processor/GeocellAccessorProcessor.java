@@ -0,0 +1,227 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code com.beoui.geocell.GeocellAccessor} named &lt;Entity&gt;_GeocellAccessor for
+ * every class declaring a field annotated with Latitude, Longitude or Geocells, so that
+ * GeocellUtils.getLocation() reads entities without reflection.
+ *
+ * The build fails when such a concrete class (with its superclasses) doesn't have exactly one field with
+ * each annotation, when an annotated field is private or has the wrong type, or when the class
+ * itself can't be accessed from its package.
+ *
+ * Put this directory's classes and META-INF/services on the annotation processor path of the
+ * project compiling the entities (javac -processorpath, Eclipse "Factory Path").
+ *
+ */
+@SupportedAnnotationTypes({
+    GeocellAccessorProcessor.LATITUDE,
+    GeocellAccessorProcessor.LONGITUDE,
+    GeocellAccessorProcessor.GEOCELLS
+})
+public class GeocellAccessorProcessor extends AbstractProcessor {
+
+    static final String LATITUDE = "com.beoui.geocell.annotations.Latitude";
+    static final String LONGITUDE = "com.beoui.geocell.annotations.Longitude";
+    static final String GEOCELLS = "com.beoui.geocell.annotations.Geocells";
+
+    private static final String SUFFIX = "_GeocellAccessor";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final Set<TypeElement> entities = new LinkedHashSet<TypeElement>();
+        for(final TypeElement annotation : annotations) {
+            for(final Element field : roundEnv.getElementsAnnotatedWith(annotation)) {
+                entities.add((TypeElement) field.getEnclosingElement());
+            }
+        }
+        for(final TypeElement entity : entities) {
+            generate(entity);
+        }
+        return true;
+    }
+
+    private void generate(TypeElement entity) {
+        final VariableElement latitude = findField(entity, LATITUDE);
+        final VariableElement longitude = findField(entity, LONGITUDE);
+        final VariableElement geocells = findField(entity, GEOCELLS);
+        if(entity.getModifiers().contains(Modifier.ABSTRACT) && (latitude == null || longitude == null || geocells == null)) {
+            // Partial base class: its subclasses get their own accessors.
+            return;
+        }
+        boolean valid = checkEntity(entity);
+        valid &= checkField(entity, latitude, LATITUDE, true);
+        valid &= checkField(entity, longitude, LONGITUDE, true);
+        valid &= checkField(entity, geocells, GEOCELLS, false);
+        if(!valid) {
+            return;
+        }
+
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(entity);
+        final String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(entity).toString();
+        final String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                .replace('$', '_') + SUFFIX;
+        final String entityName = entity.getQualifiedName().toString();
+
+        final StringBuilder source = new StringBuilder();
+        if(!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/** Generated by ").append(GeocellAccessorProcessor.class.getName()).append(", do not edit. */\n")
+                .append("public final class ").append(simpleName)
+                .append(" implements com.beoui.geocell.GeocellAccessor<").append(entityName).append("> {\n\n")
+                .append("    public double getLatitude(").append(entityName).append(" entity) {\n")
+                .append("        return entity.").append(latitude.getSimpleName()).append(";\n")
+                .append("    }\n\n")
+                .append("    public double getLongitude(").append(entityName).append(" entity) {\n")
+                .append("        return entity.").append(longitude.getSimpleName()).append(";\n")
+                .append("    }\n\n")
+                .append("    public String getGeocellsFieldName() {\n")
+                .append("        return \"").append(geocells.getSimpleName()).append("\";\n")
+                .append("    }\n\n")
+                .append("}\n");
+
+        try {
+            final JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                    packageName.isEmpty() ? simpleName : packageName + "." + simpleName, entity);
+            final Writer writer = file.openWriter();
+            try {
+                writer.write(source.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Can't write the geocell accessor: " + e.getMessage(), entity);
+        }
+    }
+
+    // Looks for the field with the given annotation in the class and its superclasses, reporting duplicates.
+    private VariableElement findField(TypeElement entity, String annotation) {
+        VariableElement found = null;
+        for(TypeElement type = entity; type != null; type = superclass(type)) {
+            for(final VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                if(hasAnnotation(field, annotation)) {
+                    if(found != null) {
+                        error(field, "Only one field may be annotated with @" + simpleName(annotation) + " in " + entity);
+                    } else {
+                        found = field;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean checkEntity(TypeElement entity) {
+        if(entity.getKind() != ElementKind.CLASS) {
+            return error(entity, "Geocell annotations are only supported on class fields");
+        }
+        for(Element type = entity; type.getKind() != ElementKind.PACKAGE; type = type.getEnclosingElement()) {
+            if(type.getModifiers().contains(Modifier.PRIVATE)) {
+                return error(entity, entity + " must not be private so its geocell accessor can read it");
+            }
+            if(type instanceof TypeElement && ((TypeElement) type).getNestingKind() == NestingKind.MEMBER
+                    && !type.getModifiers().contains(Modifier.STATIC)) {
+                return error(entity, entity + " must be a top level or static nested class");
+            }
+        }
+        return true;
+    }
+
+    private boolean checkField(TypeElement entity, VariableElement field, String annotation, boolean numeric) {
+        if(field == null) {
+            return error(entity, entity + " has no field annotated with @" + simpleName(annotation));
+        }
+        if(field.getModifiers().contains(Modifier.PRIVATE)) {
+            return error(field, "@" + simpleName(annotation) + " field must not be private so the generated accessor can read it");
+        }
+        if(field.getModifiers().contains(Modifier.STATIC)) {
+            return error(field, "@" + simpleName(annotation) + " field must not be static");
+        }
+        final PackageElement entityPackage = processingEnv.getElementUtils().getPackageOf(entity);
+        final PackageElement fieldPackage = processingEnv.getElementUtils().getPackageOf(field);
+        if(!field.getModifiers().contains(Modifier.PUBLIC) && !entityPackage.equals(fieldPackage)) {
+            return error(field, "@" + simpleName(annotation) + " field inherited from another package must be public");
+        }
+        if(numeric && !isNumeric(field.asType())) {
+            return error(field, "@" + simpleName(annotation) + " field must be a double or another primitive number");
+        }
+        return true;
+    }
+
+    private static boolean isNumeric(TypeMirror type) {
+        final TypeKind kind = type.getKind();
+        return kind == TypeKind.DOUBLE || kind == TypeKind.FLOAT || kind == TypeKind.LONG
+                || kind == TypeKind.INT || kind == TypeKind.SHORT || kind == TypeKind.BYTE;
+    }
+
+    private static TypeElement superclass(TypeElement type) {
+        final TypeMirror superclass = type.getSuperclass();
+        if(superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+
+    private static boolean hasAnnotation(Element element, String annotation) {
+        for(final AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if(((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String simpleName(String annotation) {
+        return annotation.substring(annotation.lastIndexOf('.') + 1);
+    }
+
+    private boolean error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+        return false;
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.beoui.geocell.model.GeocellQuery;
+import com.beoui.geocell.model.Point;
+
+/**
+ * GeocellQueryEngine decorator caching the results of each cell, with a time to live and
+ * least recently used eviction.
+ *
+ * Because geocells are hierarchical, a requested cell is also answered locally when one of its
+ * ancestors is cached (keeping the ancestor's entities located inside the cell), or when all 16
+ * of its children are cached. Only the remaining cells are passed on to the underlying engine,
+ * in a single query, and its results are split per cell using the entities' locations
+ * (see {@link GeocellUtils#getLocation(Object)}).
+ *
+ * Results are shared between callers: cached entities must not be modified.
+ *
+ */
+public class CachingGeocellQueryEngine implements GeocellQueryEngine {
+
+    private final GeocellQueryEngine delegate;
+    private final long timeToLive;
+    private final Map<CellKey, CachedCell> cache;
+
+    /**
+     * @param delegate the engine fetching the cells that aren't cached
+     * @param maxCells maximum number of cells kept in the cache
+     * @param timeToLive time in milliseconds after which a cached cell is fetched again
+     */
+    public CachingGeocellQueryEngine(GeocellQueryEngine delegate, final int maxCells, long timeToLive) {
+        this.delegate = delegate;
+        this.timeToLive = timeToLive;
+        this.cache = new LinkedHashMap<CellKey, CachedCell>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CellKey, CachedCell> eldest) {
+                return size() > maxCells;
+            }
+        };
+    }
+
+    public <T> List<T> query(GeocellQuery baseQuery, List<String> curGeocellsUnique, Class<T> entityClass) {
+        final Set<T> result = new LinkedHashSet<T>();
+        final List<String> missing = new ArrayList<String>();
+        final long now = System.currentTimeMillis();
+
+        synchronized(cache) {
+            for(final String cell : curGeocellsUnique) {
+                if(!addCached(baseQuery, cell, entityClass, now, result)) {
+                    missing.add(cell);
+                }
+            }
+        }
+        if(missing.isEmpty()) {
+            return new ArrayList<T>(result);
+        }
+
+        final List<T> fetched = delegate.query(baseQuery, missing, entityClass);
+        result.addAll(fetched);
+
+        // Split the fetched entities per requested cell.
+        final List<Point> locations = new ArrayList<Point>(fetched.size());
+        for(final T entity : fetched) {
+            locations.add(GeocellUtils.getLocation(entity));
+        }
+        final long fetchTime = System.currentTimeMillis();
+        for(final String cell : missing) {
+            final List<Object> entities = new ArrayList<Object>();
+            for(int i = 0; i < fetched.size(); i++) {
+                if(containsLocation(cell, locations.get(i))) {
+                    entities.add(fetched.get(i));
+                }
+            }
+            synchronized(cache) {
+                cache.put(new CellKey(baseQuery, cell, entityClass),
+                        new CachedCell(Collections.unmodifiableList(entities), fetchTime));
+            }
+        }
+        return new ArrayList<T>(result);
+    }
+
+    /**
+     * Empties the cache, for instance after entities have been created or modified.
+     */
+    public void clear() {
+        synchronized(cache) {
+            cache.clear();
+        }
+    }
+
+    // Called with the cache lock held.
+    @SuppressWarnings("unchecked")
+    private <T> boolean addCached(GeocellQuery baseQuery, String cell, Class<T> entityClass, long now, Set<T> result) {
+        final CachedCell cached = get(new CellKey(baseQuery, cell, entityClass), now);
+        if(cached != null) {
+            result.addAll((List<T>) cached.entities);
+            return true;
+        }
+
+        for(int length = cell.length() - 1; length > 0; length--) {
+            final CachedCell ancestor = get(new CellKey(baseQuery, cell.substring(0, length), entityClass), now);
+            if(ancestor != null) {
+                for(final Object entity : ancestor.entities) {
+                    if(containsLocation(cell, GeocellUtils.getLocation(entity))) {
+                        result.add((T) entity);
+                    }
+                }
+                return true;
+            }
+        }
+
+        final List<CachedCell> children = new ArrayList<CachedCell>(16);
+        for(int i = 0; i < 16; i++) {
+            final CachedCell child = get(new CellKey(baseQuery, cell + Character.forDigit(i, 16), entityClass), now);
+            if(child == null) {
+                return false;
+            }
+            children.add(child);
+        }
+        for(final CachedCell child : children) {
+            result.addAll((List<T>) child.entities);
+        }
+        return true;
+    }
+
+    // Called with the cache lock held.
+    private CachedCell get(CellKey key, long now) {
+        final CachedCell cached = cache.get(key);
+        if(cached != null && now - cached.time > timeToLive) {
+            cache.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    private static boolean containsLocation(String cell, Point location) {
+        if(cell.length() <= PackedGeocellUtils.MAX_RESOLUTION) {
+            return PackedGeocellUtils.containsPoint(PackedGeocellUtils.fromString(cell), location.getLat(), location.getLon());
+        }
+        return GeocellUtils.containsPoint(cell, location);
+    }
+
+    private static final class CellKey {
+        private final GeocellQuery baseQuery;
+        private final String cell;
+        private final Class<?> entityClass;
+
+        CellKey(GeocellQuery baseQuery, String cell, Class<?> entityClass) {
+            this.baseQuery = baseQuery;
+            this.cell = cell;
+            this.entityClass = entityClass;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj) {
+                return true;
+            }
+            if(!(obj instanceof CellKey)) {
+                return false;
+            }
+            final CellKey other = (CellKey) obj;
+            return cell.equals(other.cell) && entityClass.equals(other.entityClass)
+                    && (baseQuery == null ? other.baseQuery == null : baseQuery.equals(other.baseQuery));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = cell.hashCode();
+            result = 31 * result + entityClass.hashCode();
+            result = 31 * result + (baseQuery == null ? 0 : baseQuery.hashCode());
+            return result;
+        }
+    }
+
+    private static final class CachedCell {
+        final List<Object> entities;
+        final long time;
+
+        CachedCell(List<Object> entities, long time) {
+            this.entities = entities;
+            this.time = time;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.beoui.geocell.model.GeocellQuery;
+
+/**
+ * GeocellQueryEngine decorator running concurrent identical queries once: a query arriving while
+ * the same base query (with the same parameters) for the same set of cells and entity class is
+ * in flight waits for that execution and shares its result.
+ *
+ * Unlike {@link CachingGeocellQueryEngine} nothing is kept once a query completes, so results
+ * are never stale; this only flattens bursts of identical requests. Each caller gets its own
+ * list, but the entities are shared and must not be modified. A failure of the shared
+ * execution is thrown to every caller waiting for it.
+ *
+ */
+public class CoalescingGeocellQueryEngine implements GeocellQueryEngine {
+
+    private final GeocellQueryEngine delegate;
+    private final ConcurrentMap<QueryKey, FutureTask<List<?>>> inFlight = new ConcurrentHashMap<QueryKey, FutureTask<List<?>>>();
+
+    /**
+     * @param delegate the engine running the queries
+     */
+    public CoalescingGeocellQueryEngine(GeocellQueryEngine delegate) {
+        this.delegate = delegate;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> List<T> query(final GeocellQuery baseQuery, final List<String> curGeocellsUnique, final Class<T> entityClass) {
+        final QueryKey key = new QueryKey(baseQuery, new HashSet<String>(curGeocellsUnique), entityClass);
+        final FutureTask<List<?>> task = new FutureTask<List<?>>(new Callable<List<?>>() {
+            public List<?> call() {
+                return delegate.query(baseQuery, curGeocellsUnique, entityClass);
+            }
+        });
+        FutureTask<List<?>> execution = inFlight.putIfAbsent(key, task);
+        if(execution == null) {
+            // This caller runs the query, on its own thread.
+            execution = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        return new ArrayList<T>((List<T>) await(execution));
+    }
+
+    /**
+     * @return the number of distinct queries currently running
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    // Waits for the shared execution even if interrupted, as giving up wouldn't stop it, then
+    // restores the interrupt status.
+    private static List<?> await(FutureTask<List<?>> execution) {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return execution.get();
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                } catch(ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if(cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if(cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class QueryKey {
+        private final GeocellQuery baseQuery;
+        private final Set<String> cells;
+        private final Class<?> entityClass;
+        private final int hashCode;
+
+        QueryKey(GeocellQuery baseQuery, Set<String> cells, Class<?> entityClass) {
+            this.baseQuery = baseQuery;
+            this.cells = cells;
+            this.entityClass = entityClass;
+            int result = cells.hashCode();
+            result = 31 * result + entityClass.hashCode();
+            result = 31 * result + (baseQuery == null ? 0 : baseQuery.hashCode());
+            this.hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj) {
+                return true;
+            }
+            if(!(obj instanceof QueryKey)) {
+                return false;
+            }
+            final QueryKey other = (QueryKey) obj;
+            return hashCode == other.hashCode && entityClass.equals(other.entityClass) && cells.equals(other.cells)
+                    && (baseQuery == null ? other.baseQuery == null : baseQuery.equals(other.baseQuery));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+/**
+ * Reads the location of entities annotated with {@link com.beoui.geocell.annotations.Latitude},
+ * {@link com.beoui.geocell.annotations.Longitude} and {@link com.beoui.geocell.annotations.Geocells}
+ * without reflection.
+ *
+ * Implementations named &lt;Entity&gt;_GeocellAccessor, in the entity's package, are generated at
+ * compile time by the geocell annotation processor (see processor/) and picked up by
+ * {@link GeocellUtils#getLocation(Object)}. Nested entity classes use their binary name with '$'
+ * replaced by '_', e.g. Outer_Inner_GeocellAccessor.
+ *
+ * @param <T> the entity class
+ */
+public interface GeocellAccessor<T> {
+
+    double getLatitude(T entity);
+
+    double getLongitude(T entity);
+
+    /**
+     * @return the name of the field annotated with Geocells
+     */
+    String getGeocellsFieldName();
+
+}
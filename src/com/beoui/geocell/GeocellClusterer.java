@@ -0,0 +1,240 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.Point;
+
+/**
+ * Groups entities into map marker clusters by the prefix of their geocell at a resolution
+ * chosen from the map zoom.
+ *
+ * Entities already carry their geocell, so clustering one costs a substring and a hash lookup;
+ * clusters are updated incrementally as entities stream in. Each cluster keeps the centroid of
+ * its entities, their count and a representative entity to draw or open.
+ *
+ * Not thread safe: feed and read it from one thread, typically the UI thread.
+ *
+ * @param <T> the type of the entities
+ */
+public class GeocellClusterer<T> {
+
+    /**
+     * A group of entities sharing a geocell prefix.
+     *
+     * @param <T> the type of the entities
+     */
+    public static class Cluster<T> {
+
+        private final String geocell;
+        private int count;
+        private double latSum;
+        private double lonSum;
+        private T representative;
+
+        Cluster(String geocell) {
+            this.geocell = geocell;
+        }
+
+        /**
+         * @return the geocell shared by the entities of the cluster
+         */
+        public String getGeocell() {
+            return geocell;
+        }
+
+        /**
+         * @return the number of entities in the cluster
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean latitude of the entities
+         */
+        public double getLatitude() {
+            return latSum / count;
+        }
+
+        /**
+         * @return the mean longitude of the entities. Cells never cross the antimeridian, so
+         * neither does the mean.
+         */
+        public double getLongitude() {
+            return lonSum / count;
+        }
+
+        /**
+         * @return the centroid of the entities
+         */
+        public Point getCentroid() {
+            return new Point(getLatitude(), getLongitude());
+        }
+
+        /**
+         * @return the first entity added, or the greatest according to the clusterer's comparator
+         */
+        public T getRepresentative() {
+            return representative;
+        }
+
+    }
+
+    private final int resolution;
+    private final Comparator<? super T> representativeOrder;
+    private final Map<String, Cluster<T>> clusters = new LinkedHashMap<String, Cluster<T>>();
+    private int size;
+
+    /**
+     * Creates a clusterer whose representatives are the first entity added to each cluster.
+     *
+     * @param resolution the length of the geocell prefixes, see {@link #resolutionForZoom(int)}
+     */
+    public GeocellClusterer(int resolution) {
+        this(resolution, null);
+    }
+
+    /**
+     * @param resolution the length of the geocell prefixes, see {@link #resolutionForZoom(int)}
+     * @param representativeOrder the order choosing the greatest entity of each cluster as its
+     * representative (e.g. the most scanned code), or null to keep the first entity added
+     */
+    public GeocellClusterer(int resolution, Comparator<? super T> representativeOrder) {
+        if(resolution < 1) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        this.resolution = resolution;
+        this.representativeOrder = representativeOrder;
+    }
+
+    /**
+     * Maps a web map zoom level to a resolution giving clusters of about 64 pixels, i.e. 4 x 4
+     * clusters per 256 pixel tile.
+     *
+     * @param zoom the zoom level, 0 showing the whole world in one tile
+     * @return the resolution, at least 1
+     */
+    public static int resolutionForZoom(int zoom) {
+        return Math.max(1, (zoom + 2) / 2);
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Adds an entity to the cluster of its geocell.
+     *
+     * @param entity the entity
+     * @param geocell the geocell of the entity. Geocells shorter than the resolution form
+     * their own, coarser, clusters.
+     * @param lat the latitude of the entity
+     * @param lon the longitude of the entity
+     * @return the cluster of the entity
+     */
+    public Cluster<T> add(T entity, String geocell, double lat, double lon) {
+        final String prefix = geocell.length() > resolution ? geocell.substring(0, resolution) : geocell;
+        Cluster<T> cluster = clusters.get(prefix);
+        if(cluster == null) {
+            cluster = new Cluster<T>(prefix);
+            clusters.put(prefix, cluster);
+        }
+        if(cluster.count == 0
+                || (representativeOrder != null && representativeOrder.compare(entity, cluster.representative) > 0)) {
+            cluster.representative = entity;
+        }
+        cluster.count++;
+        cluster.latSum += lat;
+        cluster.lonSum += lon;
+        size++;
+        return cluster;
+    }
+
+    /**
+     * Adds an entity whose only known location is its geocell, at the center of the geocell.
+     *
+     * @return the cluster of the entity
+     */
+    public Cluster<T> add(T entity, String geocell) {
+        final BoundingBox box = GeocellUtils.computeBox(geocell);
+        return add(entity, geocell, (box.getNorth() + box.getSouth()) / 2, (box.getEast() + box.getWest()) / 2);
+    }
+
+    /**
+     * Merges the clusters into a clusterer of a lower resolution, for zooming out without
+     * clustering the entities again. Zooming in needs the entities.
+     *
+     * @param coarserResolution at most the resolution of this clusterer
+     * @return the new clusterer, with the same representative order
+     */
+    public GeocellClusterer<T> coarsen(int coarserResolution) {
+        if(coarserResolution > resolution) {
+            throw new IllegalArgumentException("Resolution " + coarserResolution + " is finer than " + resolution);
+        }
+        final GeocellClusterer<T> result = new GeocellClusterer<T>(coarserResolution, representativeOrder);
+        for(Cluster<T> cluster : clusters.values()) {
+            final String geocell = cluster.geocell;
+            final String prefix = geocell.length() > coarserResolution ? geocell.substring(0, coarserResolution) : geocell;
+            Cluster<T> merged = result.clusters.get(prefix);
+            if(merged == null) {
+                merged = new Cluster<T>(prefix);
+                merged.representative = cluster.representative;
+                result.clusters.put(prefix, merged);
+            } else if(representativeOrder != null
+                    && representativeOrder.compare(cluster.representative, merged.representative) > 0) {
+                merged.representative = cluster.representative;
+            }
+            merged.count += cluster.count;
+            merged.latSum += cluster.latSum;
+            merged.lonSum += cluster.lonSum;
+        }
+        result.size = size;
+        return result;
+    }
+
+    /**
+     * @param geocell a geocell prefix, of the clusterer's resolution
+     * @return its cluster, or null if no entity was added there
+     */
+    public Cluster<T> getCluster(String geocell) {
+        return clusters.get(geocell);
+    }
+
+    /**
+     * @return the clusters, in the order they were created. The view reflects later additions.
+     */
+    public Collection<Cluster<T>> getClusters() {
+        return Collections.unmodifiableCollection(clusters.values());
+    }
+
+    /**
+     * @return the number of entities added
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        clusters.clear();
+        size = 0;
+    }
+
+}
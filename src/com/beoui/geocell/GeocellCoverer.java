@@ -0,0 +1,162 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import com.beoui.geocell.model.CircleRegion;
+import com.beoui.geocell.model.GeocellRegion;
+import com.beoui.geocell.model.MutableBoundingBox;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.PolygonRegion;
+
+/**
+ * Covers a region with at most a given number of geocells of mixed resolutions.
+ *
+ * Starting from the resolution 1 cells intersecting the region, the coarsest cells that are not
+ * completely inside the region are split into their children intersecting the region, as long
+ * as the total number of cells stays within the budget. The cover is much tighter than a fixed
+ * resolution cell and its neighbours, e.g. for circular "within 200 m" searches, so fewer
+ * entities outside of the region are fetched and filtered.
+ *
+ * The cells never overlap; they can be passed to a GeocellQueryEngine or turned into ranges with
+ * {@link GeocellRangeUtils#toRanges(List)}. Instances are immutable and can be shared.
+ *
+ */
+public class GeocellCoverer {
+
+    public static final int DEFAULT_MAX_CELLS = 8;
+
+    private final int maxCells;
+    private final int minResolution;
+    private final int maxResolution;
+
+    /**
+     * Covers with at most DEFAULT_MAX_CELLS cells up to GeocellManager.MAX_GEOCELL_RESOLUTION.
+     */
+    public GeocellCoverer() {
+        this(DEFAULT_MAX_CELLS, 1, GeocellManager.MAX_GEOCELL_RESOLUTION);
+    }
+
+    /**
+     * @param maxCells the cell budget. It is exceeded only when the region intersects more
+     *            cells at minResolution.
+     * @param minResolution cells coarser than this are always split, whatever the budget
+     * @param maxResolution cells are never split beyond this, at most PackedGeocellUtils.MAX_RESOLUTION
+     */
+    public GeocellCoverer(int maxCells, int minResolution, int maxResolution) {
+        if(maxCells < 1 || minResolution < 1 || minResolution > maxResolution
+                || maxResolution > PackedGeocellUtils.MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Invalid coverer settings: " + maxCells + " cells, resolution "
+                    + minResolution + " to " + maxResolution);
+        }
+        this.maxCells = maxCells;
+        this.minResolution = minResolution;
+        this.maxResolution = maxResolution;
+    }
+
+    /**
+     * @param region the region to cover
+     * @return the packed cells covering the region, sorted
+     */
+    public long[] coverPacked(GeocellRegion region) {
+        final MutableBoundingBox box = new MutableBoundingBox();
+        final List<Long> result = new ArrayList<Long>();
+        // Breadth first, so the coarsest cells, which waste the most, are split first.
+        // LinkedList rather than ArrayDeque, which needs Android API level 9.
+        final Queue<Long> candidates = new LinkedList<Long>();
+        final long[] children = new long[16];
+
+        for(int x = 0; x < 4; x++) {
+            for(int y = 0; y < 4; y++) {
+                final long cell = PackedGeocellUtils.fromXY(x, y, 1);
+                if(region.intersects(PackedGeocellUtils.computeBox(cell, box))) {
+                    addCell(region, cell, box, result, candidates);
+                }
+            }
+        }
+
+        while(!candidates.isEmpty()) {
+            final long cell = candidates.poll();
+            int count = 0;
+            for(int i = 0; i < 16; i++) {
+                final long child = PackedGeocellUtils.child(cell, i);
+                if(region.intersects(PackedGeocellUtils.computeBox(child, box))) {
+                    children[count++] = child;
+                }
+            }
+            final int total = result.size() + candidates.size() + count;
+            if(PackedGeocellUtils.resolution(cell) < minResolution || total <= maxCells) {
+                for(int i = 0; i < count; i++) {
+                    addCell(region, children[i], box, result, candidates);
+                }
+            } else {
+                result.add(cell);
+            }
+        }
+
+        final long[] cells = new long[result.size()];
+        for(int i = 0; i < cells.length; i++) {
+            cells[i] = result.get(i);
+        }
+        Arrays.sort(cells);
+        return cells;
+    }
+
+    /**
+     * @param region the region to cover
+     * @return the geocells covering the region, sorted
+     */
+    public List<String> cover(GeocellRegion region) {
+        final long[] cells = coverPacked(region);
+        final List<String> result = new ArrayList<String>(cells.length);
+        for(final long cell : cells) {
+            result.add(PackedGeocellUtils.toString(cell));
+        }
+        return result;
+    }
+
+    /**
+     * @param center the center of the circle
+     * @param radius the radius in meters
+     * @return the geocells covering the circle, sorted
+     */
+    public List<String> coverCircle(Point center, double radius) {
+        return cover(new CircleRegion(center, radius));
+    }
+
+    /**
+     * @param vertices the vertices of a simple polygon, see PolygonRegion
+     * @return the geocells covering the polygon, sorted
+     */
+    public List<String> coverPolygon(List<Point> vertices) {
+        return cover(new PolygonRegion(vertices));
+    }
+
+    // Adds an intersecting cell either to the cover, when it can't or doesn't need to be split, or to the candidates.
+    private void addCell(GeocellRegion region, long cell, MutableBoundingBox box, List<Long> result, Queue<Long> candidates) {
+        PackedGeocellUtils.computeBox(cell, box);
+        final int resolution = PackedGeocellUtils.resolution(cell);
+        if(resolution >= maxResolution || (resolution >= minResolution && region.contains(box))) {
+            result.add(cell);
+        } else {
+            candidates.add(cell);
+        }
+    }
+
+}
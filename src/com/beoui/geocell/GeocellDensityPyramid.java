@@ -0,0 +1,217 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.MutableBoundingBox;
+
+/**
+ * Point counts per geocell at every resolution from 1 to a maximum, kept up to date as points
+ * are added and removed, for heatmaps.
+ *
+ * All resolutions share one map keyed by packed cells, with counts updated in place. Adding
+ * or removing a point updates one count per resolution; reading the counts of a viewport
+ * descends the pyramid through the non-empty cells only, so its cost depends on the number of
+ * visible cells with points, not on the number of points.
+ *
+ * Thread safe.
+ */
+public class GeocellDensityPyramid {
+
+    /**
+     * Receives the counts read by {@link GeocellDensityPyramid#visit(BoundingBox, int, CellVisitor)}.
+     */
+    public interface CellVisitor {
+
+        /**
+         * @param cell a packed cell
+         * @param count the number of points in the cell, never 0
+         */
+        void visit(long cell, int count);
+
+    }
+
+    private final int maxResolution;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by lock.
+    private final LongIntHashMap counts = new LongIntHashMap();
+
+    /**
+     * @param maxResolution finest resolution counted, between 1 and PackedGeocellUtils.MAX_RESOLUTION
+     */
+    public GeocellDensityPyramid(int maxResolution) {
+        if(maxResolution < 1 || maxResolution > PackedGeocellUtils.MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Invalid resolution: " + maxResolution);
+        }
+        this.maxResolution = maxResolution;
+    }
+
+    public int getMaxResolution() {
+        return maxResolution;
+    }
+
+    /**
+     * Counts a point.
+     */
+    public void add(double lat, double lon) {
+        update(PackedGeocellUtils.compute(lat, lon, maxResolution), 1);
+    }
+
+    /**
+     * Uncounts a point previously added at the same location.
+     */
+    public void remove(double lat, double lon) {
+        update(PackedGeocellUtils.compute(lat, lon, maxResolution), -1);
+    }
+
+    private void update(long cell, int delta) {
+        lock.writeLock().lock();
+        try {
+            // The finest cell holds the fewest points: checking it keeps every level consistent.
+            if(delta < 0 && counts.get(cell) < -delta) {
+                throw new IllegalStateException("Removed a point that wasn't added");
+            }
+            for(long curCell = cell; PackedGeocellUtils.resolution(curCell) > 0; curCell = PackedGeocellUtils.parent(curCell)) {
+                counts.add(curCell, delta);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param cell a packed cell, of at most the maximum resolution
+     * @return the number of points in the cell
+     */
+    public int count(long cell) {
+        lock.readLock().lock();
+        try {
+            return counts.get(cell);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param geocell a geocell string, of at most the maximum resolution
+     * @return the number of points in the cell
+     */
+    public int count(String geocell) {
+        return count(PackedGeocellUtils.fromString(geocell));
+    }
+
+    /**
+     * @return the number of points
+     */
+    public int total() {
+        int total = 0;
+        lock.readLock().lock();
+        try {
+            for(int i = 0; i < 16; i++) {
+                total += counts.get(PackedGeocellUtils.fromXY(i & 3, i >> 2, 1));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return total;
+    }
+
+    /**
+     * Maps a web map zoom level to a resolution giving cells of about 16 pixels, i.e. 16 x 16
+     * cells per 256 pixel tile, capped to the maximum resolution.
+     *
+     * @param zoom the zoom level, 0 showing the whole world in one tile
+     * @return the resolution
+     */
+    public int resolutionForZoom(int zoom) {
+        return Math.max(1, Math.min(maxResolution, (zoom + 4) / 2));
+    }
+
+    /**
+     * Visits the non-empty cells of the given resolution intersecting the viewport.
+     *
+     * @param viewport the box; east may be lower than west when the box crosses the antimeridian
+     * @param resolution the resolution of the cells, at most the maximum resolution
+     * @param visitor the receiver of the counts, called with the pyramid's read lock held
+     */
+    public void visit(BoundingBox viewport, int resolution, CellVisitor visitor) {
+        if(resolution < 1 || resolution > maxResolution) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        final MutableBoundingBox box = new MutableBoundingBox();
+        lock.readLock().lock();
+        try {
+            if(viewport.getEast() < viewport.getWest()) {
+                visitRoots(new MutableBoundingBox(viewport.getNorth(), 180.0, viewport.getSouth(), viewport.getWest()),
+                        resolution, box, visitor);
+                visitRoots(new MutableBoundingBox(viewport.getNorth(), viewport.getEast(), viewport.getSouth(), -180.0),
+                        resolution, box, visitor);
+            } else {
+                visitRoots(new MutableBoundingBox(viewport.getNorth(), viewport.getEast(), viewport.getSouth(), viewport.getWest()),
+                        resolution, box, visitor);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #visit(BoundingBox, int, CellVisitor)}, collecting the counts.
+     *
+     * @return the counts by geocell string
+     */
+    public Map<String, Integer> counts(BoundingBox viewport, int resolution) {
+        final Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        visit(viewport, resolution, new CellVisitor() {
+            public void visit(long cell, int count) {
+                result.put(PackedGeocellUtils.toString(cell), count);
+            }
+        });
+        return result;
+    }
+
+    private void visitRoots(MutableBoundingBox viewport, int resolution, MutableBoundingBox box, CellVisitor visitor) {
+        for(int i = 0; i < 16; i++) {
+            visitCell(PackedGeocellUtils.fromXY(i & 3, i >> 2, 1), viewport, resolution, box, visitor);
+        }
+    }
+
+    // Called with the read lock held.
+    private void visitCell(long cell, MutableBoundingBox viewport, int resolution, MutableBoundingBox box,
+            CellVisitor visitor) {
+        final int count = counts.get(cell);
+        if(count == 0) {
+            return;
+        }
+        PackedGeocellUtils.computeBox(cell, box);
+        // Cells touching the viewport only on an edge are outside of it.
+        if(box.getSouth() >= viewport.getNorth() || box.getNorth() <= viewport.getSouth()
+                || box.getWest() >= viewport.getEast() || box.getEast() <= viewport.getWest()) {
+            return;
+        }
+        if(PackedGeocellUtils.resolution(cell) == resolution) {
+            visitor.visit(cell, count);
+            return;
+        }
+        for(int i = 0; i < 16; i++) {
+            visitCell(PackedGeocellUtils.child(cell, i), viewport, resolution, box, visitor);
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.beoui.geocell.distance.DistanceFunction;
+import com.beoui.geocell.distance.LawOfCosinesDistance;
+import com.beoui.geocell.distance.PreparedPoint;
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.MutableBoundingBox;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.Tuple;
+
+/**
+ * In-memory index of located entities: a 16-ary trie following the characters of their geocells.
+ *
+ * Entities either implement LocationCapable or have @Latitude/@Longitude fields, see
+ * {@link GeocellUtils#getLocation(Object)}; their location is read once, when they are inserted.
+ * Entities are identified with equals()/hashCode().
+ *
+ * Writers are serialized per top-level cell (the first geocell character), so writers in
+ * different parts of the world don't wait for each other. Readers never lock: nodes replace
+ * their child and entry arrays instead of modifying them (copy-on-write), so a query sees
+ * every node either before or after a concurrent write.
+ *
+ */
+public class GeocellIndex<T> {
+
+    /**
+     * Default resolution of the trie leaves, cells of about 40m x 20m.
+     */
+    public static final int DEFAULT_RESOLUTION = 10;
+
+    private static final DistanceFunction DEFAULT_DISTANCE_FUNCTION = new LawOfCosinesDistance();
+
+    private final int resolution;
+    private final Node<T>[] roots;
+    private final ReentrantLock[] locks;
+    private final ConcurrentHashMap<T, Entry<T>> entries = new ConcurrentHashMap<T, Entry<T>>();
+
+    public GeocellIndex() {
+        this(DEFAULT_RESOLUTION);
+    }
+
+    /**
+     * @param resolution resolution of the trie leaves, between 1 and PackedGeocellUtils.MAX_RESOLUTION
+     */
+    @SuppressWarnings("unchecked")
+    public GeocellIndex(int resolution) {
+        if(resolution < 1 || resolution > PackedGeocellUtils.MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Resolution must be between 1 and "
+                    + PackedGeocellUtils.MAX_RESOLUTION + ": " + resolution);
+        }
+        this.resolution = resolution;
+        this.roots = (Node<T>[]) new Node<?>[16];
+        this.locks = new ReentrantLock[16];
+        for(int i = 0; i < 16; i++) {
+            roots[i] = new Node<T>(PackedGeocellUtils.child(0L, i));
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Inserts the entity at the location given by {@link GeocellUtils#getLocation(Object)},
+     * or moves it there if it is already indexed.
+     *
+     * @param entity the entity to index
+     */
+    public void insert(T entity) {
+        final Point location = GeocellUtils.getLocation(entity);
+        move(entity, location.getLat(), location.getLon());
+    }
+
+    /**
+     * Inserts the entity at the given location, or moves it there if it is already indexed.
+     *
+     * @param entity the entity to index
+     * @param lat latitude of the entity
+     * @param lon longitude of the entity
+     * @return whether the entity was already indexed
+     */
+    public boolean move(T entity, double lat, double lon) {
+        final Entry<T> entry = new Entry<T>(entity, lat, lon, PackedGeocellUtils.compute(lat, lon, resolution));
+        final int newStripe = stripe(entry.cell);
+        while(true) {
+            final Entry<T> old = entries.get(entity);
+            final int oldStripe = old == null ? newStripe : stripe(old.cell);
+            // Always lock the lower stripe first.
+            final ReentrantLock first = locks[Math.min(oldStripe, newStripe)];
+            final ReentrantLock second = locks[Math.max(oldStripe, newStripe)];
+            first.lock();
+            second.lock();
+            try {
+                // The map is updated first, atomically: two first inserts of the same entity lock
+                // different stripes, and only one of them may reach the trie.
+                if(old == null ? entries.putIfAbsent(entity, entry) != null : !entries.replace(entity, old, entry)) {
+                    // Inserted, moved or removed concurrently.
+                    continue;
+                }
+                if(old != null) {
+                    removeFromTrie(old);
+                }
+                addToTrie(entry);
+                return old != null;
+            } finally {
+                second.unlock();
+                first.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param entity the entity to remove
+     * @return whether the entity was indexed
+     */
+    public boolean remove(T entity) {
+        while(true) {
+            final Entry<T> old = entries.get(entity);
+            if(old == null) {
+                return false;
+            }
+            final ReentrantLock lock = locks[stripe(old.cell)];
+            lock.lock();
+            try {
+                if(!entries.remove(entity, old)) {
+                    continue;
+                }
+                removeFromTrie(old);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of indexed entities
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the entities inside the given bounding box.
+     *
+     * @param bbox the box; east may be lower than west when the box crosses the antimeridian
+     * @return the entities inside the box, in no particular order
+     */
+    public List<T> query(BoundingBox bbox) {
+        final List<T> result = new ArrayList<T>();
+        final MutableBoundingBox box = new MutableBoundingBox();
+        if(bbox.getEast() < bbox.getWest()) {
+            final MutableBoundingBox east = new MutableBoundingBox(bbox.getNorth(), 180.0, bbox.getSouth(), bbox.getWest());
+            final MutableBoundingBox west = new MutableBoundingBox(bbox.getNorth(), bbox.getEast(), bbox.getSouth(), -180.0);
+            for(final Node<T> root : roots) {
+                collectInBox(root, east, box, result);
+                collectInBox(root, west, box, result);
+            }
+        } else {
+            final MutableBoundingBox query = new MutableBoundingBox(bbox.getNorth(), bbox.getEast(), bbox.getSouth(), bbox.getWest());
+            for(final Node<T> root : roots) {
+                collectInBox(root, query, box, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entities within the given distance of a point.
+     *
+     * @param center the center of the search
+     * @param maxDistance the maximum distance in meters
+     * @return the entities found, sorted by increasing distance from the center
+     */
+    public List<T> query(Point center, double maxDistance) {
+        return query(center, maxDistance, DEFAULT_DISTANCE_FUNCTION);
+    }
+
+    /**
+     * Same as {@link #query(Point, double)}, measuring distances with the given function.
+     *
+     * @param distanceFunction the distance used to filter and sort the entities
+     */
+    public List<T> query(Point center, double maxDistance, DistanceFunction distanceFunction) {
+        final List<Tuple<T, Double>> found = new ArrayList<Tuple<T, Double>>();
+        final MutableBoundingBox box = new MutableBoundingBox();
+        final PreparedPoint preparedCenter = distanceFunction.prepare(center.getLat(), center.getLon());
+        for(final Node<T> root : roots) {
+            collectInRadius(root, preparedCenter, maxDistance, box, found);
+        }
+        Collections.sort(found, new Comparator<Tuple<T, Double>>() {
+            public int compare(Tuple<T, Double> o1, Tuple<T, Double> o2) {
+                return o1.getSecond().compareTo(o2.getSecond());
+            }
+        });
+        final List<T> result = new ArrayList<T>(found.size());
+        for(final Tuple<T, Double> tuple : found) {
+            result.add(tuple.getFirst());
+        }
+        return result;
+    }
+
+    private void collectInBox(Node<T> node, MutableBoundingBox query, MutableBoundingBox box, List<T> result) {
+        if(node.size == 0) {
+            return;
+        }
+        PackedGeocellUtils.computeBox(node.cell, box);
+        if(box.getSouth() > query.getNorth() || box.getNorth() < query.getSouth()
+                || box.getWest() > query.getEast() || box.getEast() < query.getWest()) {
+            return;
+        }
+        if(box.getSouth() >= query.getSouth() && box.getNorth() <= query.getNorth()
+                && box.getWest() >= query.getWest() && box.getEast() <= query.getEast()) {
+            collectAll(node, result);
+            return;
+        }
+        final Entry<T>[] leafEntries = node.entries;
+        if(leafEntries != null) {
+            for(final Entry<T> entry : leafEntries) {
+                if(entry.lat >= query.getSouth() && entry.lat <= query.getNorth()
+                        && entry.lon >= query.getWest() && entry.lon <= query.getEast()) {
+                    result.add(entry.entity);
+                }
+            }
+            return;
+        }
+        final Node<T>[] children = node.children;
+        if(children != null) {
+            for(final Node<T> child : children) {
+                if(child != null) {
+                    collectInBox(child, query, box, result);
+                }
+            }
+        }
+    }
+
+    private void collectInRadius(Node<T> node, PreparedPoint center, double maxDistance, MutableBoundingBox box,
+            List<Tuple<T, Double>> result) {
+        if(node.size == 0) {
+            return;
+        }
+        if(GeocellUtils.minDistance(PackedGeocellUtils.computeBox(node.cell, box), center.getLat(), center.getLon()) > maxDistance) {
+            return;
+        }
+        final Entry<T>[] leafEntries = node.entries;
+        if(leafEntries != null) {
+            for(final Entry<T> entry : leafEntries) {
+                final double distance = center.distanceTo(entry.lat, entry.lon);
+                if(distance <= maxDistance) {
+                    result.add(new Tuple<T, Double>(entry.entity, distance));
+                }
+            }
+            return;
+        }
+        final Node<T>[] children = node.children;
+        if(children != null) {
+            for(final Node<T> child : children) {
+                if(child != null) {
+                    collectInRadius(child, center, maxDistance, box, result);
+                }
+            }
+        }
+    }
+
+    private void collectAll(Node<T> node, List<T> result) {
+        final Entry<T>[] leafEntries = node.entries;
+        if(leafEntries != null) {
+            for(final Entry<T> entry : leafEntries) {
+                result.add(entry.entity);
+            }
+            return;
+        }
+        final Node<T>[] children = node.children;
+        if(children != null) {
+            for(final Node<T> child : children) {
+                if(child != null && child.size > 0) {
+                    collectAll(child, result);
+                }
+            }
+        }
+    }
+
+    // Called with the entry's stripe lock held.
+    @SuppressWarnings("unchecked")
+    private void addToTrie(Entry<T> entry) {
+        Node<T> node = roots[stripe(entry.cell)];
+        node.size++;
+        for(int level = 1; level < resolution; level++) {
+            Node<T>[] children = node.children;
+            if(children == null) {
+                children = (Node<T>[]) new Node<?>[16];
+            }
+            final int digit = PackedGeocellUtils.digit(entry.cell, level);
+            Node<T> child = children[digit];
+            if(child == null) {
+                child = new Node<T>(PackedGeocellUtils.parent(entry.cell, level + 1));
+                final Node<T>[] copy = children.clone();
+                copy[digit] = child;
+                node.children = copy;
+            }
+            child.size++;
+            node = child;
+        }
+        final Entry<T>[] old = node.entries;
+        final Entry<T>[] copy;
+        if(old == null) {
+            copy = (Entry<T>[]) new Entry<?>[1];
+        } else {
+            copy = (Entry<T>[]) new Entry<?>[old.length + 1];
+            System.arraycopy(old, 0, copy, 0, old.length);
+        }
+        copy[copy.length - 1] = entry;
+        node.entries = copy;
+    }
+
+    // Called with the entry's stripe lock held. Empty nodes are unlinked from their parent.
+    @SuppressWarnings("unchecked")
+    private void removeFromTrie(Entry<T> entry) {
+        final Node<T>[] path = (Node<T>[]) new Node<?>[resolution];
+        path[0] = roots[stripe(entry.cell)];
+        for(int level = 1; level < resolution; level++) {
+            path[level] = path[level - 1].children[PackedGeocellUtils.digit(entry.cell, level)];
+        }
+        final Node<T> leaf = path[resolution - 1];
+        final Entry<T>[] old = leaf.entries;
+        final Entry<T>[] copy = (Entry<T>[]) new Entry<?>[old.length - 1];
+        int j = 0;
+        for(final Entry<T> e : old) {
+            if(e != entry) {
+                copy[j++] = e;
+            }
+        }
+        leaf.entries = copy.length == 0 ? null : copy;
+        for(int level = resolution - 1; level >= 0; level--) {
+            final Node<T> node = path[level];
+            node.size--;
+            if(node.size == 0 && level > 0) {
+                final Node<T> parent = path[level - 1];
+                final Node<T>[] children = parent.children.clone();
+                children[PackedGeocellUtils.digit(entry.cell, level)] = null;
+                parent.children = children;
+            }
+        }
+    }
+
+    private static int stripe(long cell) {
+        return PackedGeocellUtils.digit(cell, 0);
+    }
+
+    private static final class Node<T> {
+        final long cell;
+        // Number of entities below this node, only written under the stripe lock.
+        volatile int size;
+        volatile Node<T>[] children;
+        volatile Entry<T>[] entries;
+
+        Node(long cell) {
+            this.cell = cell;
+        }
+    }
+
+    private static final class Entry<T> {
+        final T entity;
+        final double lat;
+        final double lon;
+        final long cell;
+
+        Entry(T entity, double lat, double lon, long cell) {
+            this.entity = entity;
+            this.lat = lat;
+            this.lon = lon;
+            this.cell = cell;
+        }
+    }
+
+}
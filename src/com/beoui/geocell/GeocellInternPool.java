@@ -0,0 +1,84 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+/**
+ * Bounded pool of geocell strings, so that the many entities sharing coarse cells also share
+ * the same String instances instead of holding one copy each.
+ *
+ * The pool is a direct-mapped cache: each string goes to the slot given by its hash and replaces
+ * whatever was there, so hot cells stay pooled and memory is bounded by the number of slots.
+ * Thread safe without locking: slots only ever hold complete, immutable strings, so a race just
+ * costs a duplicate string.
+ *
+ */
+public class GeocellInternPool {
+
+    private final String[] slots;
+    private final int mask;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    public GeocellInternPool(int capacity) {
+        if(capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new String[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param chars buffer holding the geocell
+     * @param length number of characters of the geocell, from the start of the buffer
+     * @return a pooled string equal to the geocell
+     */
+    public String intern(char[] chars, int length) {
+        int hash = 0;
+        for(int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        // Same hash as String.hashCode(), spread so that short cells don't crowd the low slots.
+        final int slot = (hash ^ (hash >>> 16)) & mask;
+        final String pooled = slots[slot];
+        if(pooled != null && pooled.length() == length && regionEquals(pooled, chars, length)) {
+            return pooled;
+        }
+        final String cell = new String(chars, 0, length);
+        slots[slot] = cell;
+        return cell;
+    }
+
+    /**
+     * @param cell a geocell
+     * @return a pooled string equal to the geocell
+     */
+    public String intern(String cell) {
+        return intern(cell.toCharArray(), cell.length());
+    }
+
+    private static boolean regionEquals(String pooled, char[] chars, int length) {
+        for(int i = 0; i < length; i++) {
+            if(pooled.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy iterator over the grid of cells between a Northeast and a Southwest geocell, in the
+ * order of {@link GeocellUtils#interpolate(String, String)}: rows from south to north, each
+ * row from west to east (wrapping around the antimeridian).
+ *
+ * Each cell is computed from its row and column offsets when it is requested, so callers can
+ * stop early without paying for the rest of the grid. Large grids can be processed in
+ * parallel by splitting the iterator with {@link #trySplit()}, like a Spliterator (which needs
+ * Java 8, beyond the Android API level 8 the library targets).
+ *
+ */
+public class GeocellIterator implements Iterator<String> {
+
+    private final int resolution;
+    private final int max;
+    private final int xSW;
+    private final int ySW;
+    private final long numCols;
+    private long position;
+    private long end;
+
+    /**
+     * @param cellNE the Northeast geocell
+     * @param cellSW the Southwest geocell, of the same resolution, at most PackedGeocellUtils.MAX_RESOLUTION
+     */
+    public GeocellIterator(String cellNE, String cellSW) {
+        this(PackedGeocellUtils.fromString(cellNE), PackedGeocellUtils.fromString(cellSW));
+    }
+
+    /**
+     * @param cellNE the Northeast packed cell
+     * @param cellSW the Southwest packed cell, of the same resolution
+     */
+    public GeocellIterator(long cellNE, long cellSW) {
+        this.resolution = PackedGeocellUtils.resolution(cellSW);
+        if(resolution != PackedGeocellUtils.resolution(cellNE)) {
+            throw new IllegalArgumentException("Cells must have the same resolution");
+        }
+        this.max = (1 << (2 * resolution)) - 1;
+        this.xSW = PackedGeocellUtils.x(cellSW);
+        this.ySW = PackedGeocellUtils.y(cellSW);
+        final int xNE = PackedGeocellUtils.x(cellNE);
+        final int yNE = PackedGeocellUtils.y(cellNE);
+        this.numCols = ((xNE - xSW) & max) + 1;
+        final long numRows = yNE >= ySW ? yNE - ySW + 1 : max + 1 - ySW;
+        this.position = 0;
+        this.end = numCols * numRows;
+    }
+
+    private GeocellIterator(GeocellIterator parent, long position, long end) {
+        this.resolution = parent.resolution;
+        this.max = parent.max;
+        this.xSW = parent.xSW;
+        this.ySW = parent.ySW;
+        this.numCols = parent.numCols;
+        this.position = position;
+        this.end = end;
+    }
+
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    public String next() {
+        return PackedGeocellUtils.toString(nextPacked());
+    }
+
+    /**
+     * Same as {@link #next()} without building the string.
+     *
+     * @return the next packed cell
+     */
+    public long nextPacked() {
+        if(position >= end) {
+            throw new NoSuchElementException();
+        }
+        final long row = position / numCols;
+        final long col = position - row * numCols;
+        position++;
+        return PackedGeocellUtils.pack((int) ((xSW + col) & max), (int) (ySW + row), resolution);
+    }
+
+    /**
+     * @return the number of cells left
+     */
+    public long estimateSize() {
+        return end - position;
+    }
+
+    /**
+     * Splits off the second half of the remaining cells.
+     *
+     * @return an iterator over the second half, or null if fewer than 2 cells are left
+     */
+    public GeocellIterator trySplit() {
+        if(end - position < 2) {
+            return null;
+        }
+        final long mid = (position + end) >>> 1;
+        final GeocellIterator suffix = new GeocellIterator(this, mid, end);
+        end = mid;
+        return suffix;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.beoui.geocell.distance.DistanceFunction;
+import com.beoui.geocell.distance.HaversineDistance;
+import com.beoui.geocell.distance.PreparedPoint;
+import com.beoui.geocell.model.PointBatch;
+
+/**
+ * Spatial joins between two point sets.
+ *
+ * Both sets are bucketed by geocell at the finest resolution whose cells are at least as tall
+ * as the join distance, so a point can only match points of the neighbouring buckets: the rows
+ * just above and below, and as many columns as the distance spans at the latitude of the
+ * bucket (more near the poles). Only those pairs are tested exactly, instead of all of them.
+ *
+ */
+public final class GeocellJoin {
+
+    /**
+     * Receives the matching pairs. Called concurrently from the executor's threads by the
+     * parallel join, so implementations must then be thread safe.
+     */
+    public interface PairHandler {
+
+        /**
+         * @param entityA the entity index of the point of the first set
+         * @param entityB the entity index of the point of the second set
+         * @param distance the distance between the points in meters
+         */
+        void onPair(int entityA, int entityB, double distance);
+
+    }
+
+    private static final DistanceFunction DEFAULT_DISTANCE_FUNCTION = new HaversineDistance();
+
+    // Buckets per chunk handed to another thread.
+    private static final int MIN_CHUNK = 64;
+
+    private GeocellJoin() {
+        // no instantiation allowed
+    }
+
+    /**
+     * Finds all pairs of points, one from each set, within the given distance of each other.
+     * The cells of both batches are recomputed and the batches sorted by cell.
+     *
+     * @param pointsA the first set
+     * @param pointsB the second set; if it is pointsA, every pair is reported in both orders
+     *            along with each point paired with itself
+     * @param meters the maximum distance
+     * @param handler the receiver of the pairs, called from the calling thread
+     */
+    public static void withinDistance(PointBatch pointsA, PointBatch pointsB, double meters, PairHandler handler) {
+        final Join join = new Join(pointsA, pointsB, meters, DEFAULT_DISTANCE_FUNCTION, handler, null);
+        join.joinBuckets(0, join.bucketCount());
+    }
+
+    /**
+     * Same as {@link #withinDistance(PointBatch, PointBatch, double, PairHandler)}, spreading
+     * the buckets across the threads of the given executor and the calling thread.
+     *
+     * @param handler the thread safe receiver of the pairs
+     * @param executor the executor to run the join in
+     */
+    public static void withinDistance(PointBatch pointsA, PointBatch pointsB, double meters, PairHandler handler,
+            ExecutorService executor) {
+        withinDistance(pointsA, pointsB, meters, DEFAULT_DISTANCE_FUNCTION, handler, executor);
+    }
+
+    /**
+     * Same as {@link #withinDistance(PointBatch, PointBatch, double, PairHandler, ExecutorService)},
+     * measuring distances with the given function.
+     *
+     * @param distanceFunction the distance the pairs are tested with
+     * @param executor the executor to run the join in, or null to run it in the calling thread
+     */
+    public static void withinDistance(PointBatch pointsA, PointBatch pointsB, double meters,
+            DistanceFunction distanceFunction, PairHandler handler, ExecutorService executor) {
+        final Join join = new Join(pointsA, pointsB, meters, distanceFunction, handler, executor);
+        if(executor == null) {
+            join.joinBuckets(0, join.bucketCount());
+        } else {
+            ParallelRanges.run(executor, join.bucketCount(), MIN_CHUNK, new ParallelRanges.Range() {
+                public void run(int from, int to) {
+                    join.joinBuckets(from, to);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param meters a distance
+     * @return the finest resolution whose cells are at least as tall as the distance, at least 1
+     */
+    static int resolutionFor(double meters) {
+        final double degrees = Math.toDegrees(meters / GeocellUtils.RADIUS);
+        int resolution = 1;
+        while(resolution < PackedGeocellUtils.MAX_RESOLUTION && 180.0 / (1 << (2 * (resolution + 1))) >= degrees) {
+            resolution++;
+        }
+        return resolution;
+    }
+
+    private static final class Join {
+
+        private final PointBatch a;
+        private final PointBatch b;
+        private final double meters;
+        private final DistanceFunction distanceFunction;
+        private final PairHandler handler;
+        private final int resolution;
+        private final int max;
+        // Rows to look at above and below each bucket.
+        private final int rowSpan;
+        // Start index of each bucket of a, plus the end.
+        private final int[] bucketStarts;
+        // Cell of b -> {start, end} of its points.
+        private final LongHashMap<int[]> bucketsB = new LongHashMap<int[]>();
+
+        Join(PointBatch a, PointBatch b, double meters, DistanceFunction distanceFunction, PairHandler handler,
+                ExecutorService executor) {
+            if(meters < 0) {
+                throw new IllegalArgumentException("meters must not be negative: " + meters);
+            }
+            this.a = a;
+            this.b = b;
+            this.meters = meters;
+            this.distanceFunction = distanceFunction;
+            this.handler = handler;
+            this.resolution = resolutionFor(meters);
+            this.max = (1 << (2 * resolution)) - 1;
+            final double rowHeight = 180.0 / (max + 1);
+            this.rowSpan = Math.max(1, (int) Math.ceil(Math.toDegrees(meters / GeocellUtils.RADIUS) / rowHeight));
+
+            prepare(a, executor);
+            if(b != a) {
+                prepare(b, executor);
+            }
+            final List<Integer> starts = new ArrayList<Integer>();
+            final long[] cellsA = a.cells();
+            for(int i = 0; i < a.size(); i++) {
+                if(i == 0 || cellsA[i] != cellsA[i - 1]) {
+                    starts.add(i);
+                }
+            }
+            starts.add(a.size());
+            bucketStarts = new int[starts.size()];
+            for(int i = 0; i < bucketStarts.length; i++) {
+                bucketStarts[i] = starts.get(i);
+            }
+            final long[] cellsB = b.cells();
+            int start = 0;
+            for(int i = 1; i <= b.size(); i++) {
+                if(i == b.size() || cellsB[i] != cellsB[start]) {
+                    bucketsB.put(cellsB[start], new int[] {start, i});
+                    start = i;
+                }
+            }
+        }
+
+        private void prepare(PointBatch points, ExecutorService executor) {
+            if(executor == null) {
+                points.computeCells(resolution);
+            } else {
+                points.computeCells(resolution, executor);
+            }
+            points.sortByCell();
+        }
+
+        int bucketCount() {
+            return bucketStarts.length - 1;
+        }
+
+        void joinBuckets(int from, int to) {
+            for(int bucket = from; bucket < to; bucket++) {
+                joinBucket(bucketStarts[bucket], bucketStarts[bucket + 1]);
+            }
+        }
+
+        // Joins the points [start, end) of a, which share one cell, with the neighbouring buckets of b.
+        private void joinBucket(int start, int end) {
+            final long cell = a.cells()[start];
+            final int x = PackedGeocellUtils.x(cell);
+            final int y = PackedGeocellUtils.y(cell);
+            final int rowFrom = Math.max(0, y - rowSpan);
+            final int rowTo = Math.min(max, y + rowSpan);
+            final int columnSpan = columnSpan(rowFrom, rowTo);
+            final boolean allColumns = 2L * columnSpan + 1 > max;
+
+            final PreparedPoint[] prepared = new PreparedPoint[end - start];
+            for(int i = start; i < end; i++) {
+                prepared[i - start] = distanceFunction.prepare(a.lats()[i], a.lons()[i]);
+            }
+            for(int row = rowFrom; row <= rowTo; row++) {
+                final int columnFrom = allColumns ? 0 : x - columnSpan;
+                final int columnTo = allColumns ? max : x + columnSpan;
+                for(int column = columnFrom; column <= columnTo; column++) {
+                    final int[] range = bucketsB.get(PackedGeocellUtils.pack(column & max, row, resolution));
+                    if(range != null) {
+                        joinRange(prepared, start, range[0], range[1]);
+                    }
+                }
+            }
+        }
+
+        private void joinRange(PreparedPoint[] prepared, int startA, int fromB, int toB) {
+            final double[] lats = b.lats();
+            final double[] lons = b.lons();
+            for(int i = 0; i < prepared.length; i++) {
+                final int entityA = a.entityIndexes()[startA + i];
+                for(int j = fromB; j < toB; j++) {
+                    final double distance = prepared[i].distanceTo(lats[j], lons[j]);
+                    if(distance <= meters) {
+                        handler.onPair(entityA, b.entityIndexes()[j], distance);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Columns to look at on each side, for points in the given rows: two points at most
+         * phi from the equator and dLon apart are at least R * asin(cos(phi) * |sin(dLon)|)
+         * apart (their distance to a meridian plane), and at least R * acos(sin(phi)^2) apart
+         * when dLon is over 90 degrees.
+         */
+        private int columnSpan(int rowFrom, int rowTo) {
+            final double rowHeight = 180.0 / (max + 1);
+            final double maxLat = Math.max(Math.abs(-90.0 + rowFrom * rowHeight), Math.abs(-90.0 + (rowTo + 1) * rowHeight));
+            final double angle = meters / GeocellUtils.RADIUS;
+            final double cosLat = Math.cos(Math.toRadians(maxLat));
+            final double sinLat = Math.sin(Math.toRadians(maxLat));
+            final double sinLon = Math.sin(angle) / cosLat;
+            if(angle >= Math.PI / 2 || sinLon >= 1 || Math.acos(Math.min(1.0, sinLat * sinLat)) <= angle) {
+                return max;
+            }
+            final double columnWidth = 360.0 / (max + 1);
+            return (int) Math.ceil(Math.toDegrees(Math.asin(sinLon)) / columnWidth);
+        }
+    }
+
+}
@@ -15,6 +15,11 @@ package com.beoui.geocell;
 
 import java.util.logging.Logger;
 
+/**
+ * @deprecated use the structured traces of {@link com.beoui.geocell.trace.GeocellTracing}
+ *             to monitor geocell operations
+ */
+@Deprecated
 public final class GeocellLogger {
 
     private GeocellLogger() {
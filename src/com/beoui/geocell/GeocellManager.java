@@ -0,0 +1,538 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.beoui.geocell.distance.DistanceFunction;
+import com.beoui.geocell.distance.LawOfCosinesDistance;
+import com.beoui.geocell.distance.PreparedPoint;
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.CostFunction;
+import com.beoui.geocell.model.DefaultCostFunction;
+import com.beoui.geocell.model.GeocellQuery;
+import com.beoui.geocell.model.MutableBoundingBox;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.Tuple;
+import com.beoui.geocell.trace.GeocellTrace;
+import com.beoui.geocell.trace.GeocellTracing;
+
+/**
+ * Search algorithms built on top of {@link GeocellUtils} and a {@link GeocellQueryEngine}.
+ *
+ * @author api.roman.public@gmail.com (Roman Nurik)
+ * @author (java portage) Alexandre Gellibert
+ *
+ */
+@SuppressWarnings("deprecation")
+public final class GeocellManager {
+
+    /**
+     * Finest resolution used by the searches when none is given.
+     */
+    public static final int MAX_GEOCELL_RESOLUTION = 13;
+
+    /**
+     * Resolutions whose bounding box search would need more cells than this are never planned.
+     */
+    public static final int MAX_FEASIBLE_BBOX_SEARCH_CELLS = 300;
+
+    private static final CostFunction DEFAULT_COST_FUNCTION = new DefaultCostFunction();
+    private static final DistanceFunction DEFAULT_DISTANCE_FUNCTION = new LawOfCosinesDistance();
+
+    private GeocellManager() {
+        // no instantiation allowed
+    }
+
+    /**
+     * @see #proximitySearch(Point, int, double, Class, GeocellQuery, GeocellQueryEngine, int)
+     */
+    public static <T> List<T> proximitySearch(Point center, int maxResults, double maxDistance, Class<T> entityClass,
+            GeocellQuery baseQuery, GeocellQueryEngine queryEngine) {
+        return proximitySearch(center, maxResults, maxDistance, entityClass, baseQuery, queryEngine, MAX_GEOCELL_RESOLUTION);
+    }
+
+    /**
+     * Performs a proximity/radius search, returning the entities closest to the center.
+
+      The search starts with the cell containing the center at maxGeocellResolution and grows
+      the searched region outwards: 1 cell, then 2, then 4, then the parents of those 4 cells
+      and so on, up to all 16 cells of resolution 1. After each round, any path from the center
+      to an entity not fetched yet crosses an edge of the searched region, so a spherical lower
+      bound of the distance to the nearest edge (the latitude difference for the north and
+      south edges, the distance to the great circle of the meridian for the west and east
+      edges) bounds everything outside. The search stops as soon as maxResults entities closer
+      than that have been found (or the region is wider than maxDistance). The new cells of a
+      round are streamed nearest first (plain engines a few cells at a time, see
+      PagingGeocellQueryEngine), and the stream is cancelled as soon as the distance of the
+      next cell to the center can't beat the current maxResults-th result.
+     *
+     * @param center: The center of the search.
+     * @param maxResults: The maximum number of entities to return, greater than 0.
+     * @param maxDistance: The maximum distance in meters of the returned entities, 0 for no limit.
+     * @param entityClass: The class of the entities, passed on to the query engine.
+     * @param baseQuery: The query the geocell condition is added to.
+     * @param queryEngine: The engine fetching the entities of a list of cells.
+     * @param maxGeocellResolution: The resolution the search starts at.
+     * @return The entities found, sorted by increasing distance from the center.
+     */
+    public static <T> List<T> proximitySearch(Point center, int maxResults, double maxDistance, Class<T> entityClass,
+            GeocellQuery baseQuery, GeocellQueryEngine queryEngine, int maxGeocellResolution) {
+        return proximitySearch(center, maxResults, maxDistance, entityClass, baseQuery, queryEngine, maxGeocellResolution,
+                DEFAULT_DISTANCE_FUNCTION);
+    }
+
+    /**
+     * Same as proximitySearch(Point, int, double, Class, GeocellQuery, GeocellQueryEngine, int),
+     * measuring the distance of the entities with the given function.
+     *
+     * @param distanceFunction: The distance used to filter and sort the entities, e.g. an
+                EquirectangularDistance when the search radius is small.
+     */
+    public static <T> List<T> proximitySearch(Point center, int maxResults, double maxDistance, Class<T> entityClass,
+            GeocellQuery baseQuery, GeocellQueryEngine queryEngine, int maxGeocellResolution,
+            DistanceFunction distanceFunction) {
+        if(maxResults <= 0) {
+            throw new IllegalArgumentException("maxResults must be greater than 0: " + maxResults);
+        }
+        if(maxDistance < 0) {
+            throw new IllegalArgumentException("maxDistance must not be negative: " + maxDistance);
+        }
+
+        // Max-heap on distance: the head is the current maxResults-th result.
+        final PriorityQueue<Tuple<T, Double>> best = new PriorityQueue<Tuple<T, Double>>(maxResults,
+                new Comparator<Tuple<T, Double>>() {
+                    public int compare(Tuple<T, Double> o1, Tuple<T, Double> o2) {
+                        return o2.getSecond().compareTo(o1.getSecond());
+                    }
+                });
+        final Set<String> searched = new HashSet<String>();
+        // Cells whose entities were fetched by an earlier query.
+        final Set<String> queried = new HashSet<String>();
+        final PreparedPoint preparedCenter = distanceFunction.prepare(center.getLat(), center.getLon());
+        final Point location = new Point();
+        final MutableBoundingBox cellBox = new MutableBoundingBox();
+        final StreamingGeocellQueryEngine streamingEngine = PagingGeocellQueryEngine.wrap(queryEngine);
+        final GeocellTrace trace = GeocellTracing.start("proximitySearch");
+        trace.setResolution(maxGeocellResolution);
+
+        List<String> curGeocells = new ArrayList<String>();
+        curGeocells.add(GeocellUtils.compute(center, maxGeocellResolution));
+        int curResolution = maxGeocellResolution;
+
+        while(true) {
+            final double bound = searchBound(best, maxResults, maxDistance);
+
+            // Only the cells of the region not fetched yet that could hold a better result,
+            // nearest first.
+            final List<Tuple<String, Double>> candidates = new ArrayList<Tuple<String, Double>>();
+            for(final String cell : curGeocells) {
+                if(searched.add(cell)) {
+                    final double cellDistance = minDistance(cell, center, cellBox);
+                    if(cellDistance <= bound) {
+                        candidates.add(new Tuple<String, Double>(cell, cellDistance));
+                    }
+                }
+            }
+            Collections.sort(candidates, new Comparator<Tuple<String, Double>>() {
+                public int compare(Tuple<String, Double> o1, Tuple<String, Double> o2) {
+                    return o1.getSecond().compareTo(o2.getSecond());
+                }
+            });
+
+            if(!candidates.isEmpty()) {
+                final List<String> toQuery = new ArrayList<String>(candidates.size());
+                final double[] cellDistances = new double[candidates.size()];
+                for(final Tuple<String, Double> candidate : candidates) {
+                    cellDistances[toQuery.size()] = candidate.getSecond();
+                    toQuery.add(candidate.getFirst());
+                }
+                final long queryStart = System.nanoTime();
+                final GeocellResultIterator<T> fetched = streamingEngine.queryIterator(baseQuery, toQuery, entityClass);
+                int fetchedCount = 0;
+                while(true) {
+                    // The cells left are sorted, so none can beat the results once the next can't.
+                    final int completed = fetched.completedCells();
+                    if(completed < toQuery.size()
+                            && cellDistances[completed] > searchBound(best, maxResults, maxDistance)) {
+                        fetched.cancel();
+                        break;
+                    }
+                    if(!fetched.hasNext()) {
+                        break;
+                    }
+                    final T entity = fetched.next();
+                    fetchedCount++;
+                    GeocellUtils.getLocation(entity, location);
+                    if(curResolution < maxGeocellResolution
+                            && inQueriedCell(location, curResolution, maxGeocellResolution, queried)) {
+                        continue;
+                    }
+                    final double distance = preparedCenter.distanceTo(location.getLat(), location.getLon());
+                    if(maxDistance > 0 && distance > maxDistance) {
+                        continue;
+                    }
+                    if(best.size() < maxResults) {
+                        best.add(new Tuple<T, Double>(entity, distance));
+                    } else if(distance < best.peek().getSecond()) {
+                        best.poll();
+                        best.add(new Tuple<T, Double>(entity, distance));
+                    }
+                }
+                trace.addCells(toQuery);
+                trace.addQuery(toQuery.size(), System.nanoTime() - queryStart, fetchedCount);
+                // Entities of the cells abandoned early can't make it into the results either, so
+                // skipping them when a parent cell fetches them again loses nothing.
+                queried.addAll(toQuery);
+            }
+
+            // Anything outside the searched region is at least this far.
+            final double exitDistance = exitDistance(curGeocells, center);
+            if(best.size() == maxResults && best.peek().getSecond() <= exitDistance) {
+                break;
+            }
+            if(maxDistance > 0 && exitDistance > maxDistance) {
+                break;
+            }
+
+            // The edge distances along parallels only order the directions to grow in.
+            final List<Tuple<int[], Double>> sortedEdgeDistances = GeocellUtils.distanceSortedEdges(curGeocells, center);
+
+            final List<String> expanded = expand(curGeocells, sortedEdgeDistances);
+            if(expanded != null) {
+                curGeocells = expanded;
+            } else {
+                // Region can't grow at this resolution any more: move on to the parent cells.
+                if(curResolution <= 1) {
+                    if(curGeocells.size() == 16) {
+                        break;
+                    }
+                    // Nothing coarser: the rest of the world is all that is left.
+                    curGeocells = new ArrayList<String>(16);
+                    for(int i = 0; i < 16; i++) {
+                        curGeocells.add(String.valueOf(Character.forDigit(i, 16)));
+                    }
+                    continue;
+                }
+                curResolution--;
+                final Set<String> parents = new LinkedHashSet<String>();
+                for(final String cell : curGeocells) {
+                    parents.add(cell.substring(0, curResolution));
+                }
+                curGeocells = new ArrayList<String>(parents);
+            }
+        }
+
+        final List<Tuple<T, Double>> sorted = new ArrayList<Tuple<T, Double>>(best);
+        Collections.sort(sorted, new Comparator<Tuple<T, Double>>() {
+            public int compare(Tuple<T, Double> o1, Tuple<T, Double> o2) {
+                return o1.getSecond().compareTo(o2.getSecond());
+            }
+        });
+        final List<T> result = new ArrayList<T>(sorted.size());
+        for(final Tuple<T, Double> tuple : sorted) {
+            result.add(tuple.getFirst());
+        }
+        trace.setEntitiesReturned(result.size());
+        GeocellTracing.finish(trace);
+        return result;
+    }
+
+    /**
+     * @see #bestBboxSearchCells(BoundingBox, CostFunction, boolean)
+     */
+    public static List<String> bestBboxSearchCells(BoundingBox bbox, CostFunction costFunction) {
+        return bestBboxSearchCells(bbox, costFunction, false);
+    }
+
+    /**
+     * Returns the set of geocells covering the given bounding box at the lowest cost.
+
+      Every resolution between the common prefix of the box's corners and
+      MAX_GEOCELL_RESOLUTION is priced with the cost function from its cell count alone
+      (see PackedGeocellUtils.interpolationCount), and only the cheapest one is materialised.
+      Ties go to the finer resolution, which fetches fewer entities outside of the box.
+
+      With mixedResolution, each resolution is also priced as a mixed cover: every block of 16
+      cells lying entirely inside the box is replaced by its parent, recursively. A mixed cover
+      is as tight as the uniform one at the same resolution, but needs far fewer cells for wide
+      boxes, so the cost function can afford finer resolutions.
+     *
+     * @param bbox: The bounding box to cover. East may be lower than west when the box crosses
+                the antimeridian.
+     * @param costFunction: The cost function, or null for DefaultCostFunction.
+     * @param mixedResolution: Whether the returned cells may have different resolutions.
+     * @return The sorted list of geocells covering the box.
+     */
+    public static List<String> bestBboxSearchCells(BoundingBox bbox, CostFunction costFunction, boolean mixedResolution) {
+        final GeocellTrace trace = GeocellTracing.start("bestBboxSearchCells");
+        final List<String> result = bestBboxSearchCells(bbox, costFunction, mixedResolution, trace);
+        trace.addCells(result);
+        GeocellTracing.finish(trace);
+        return result;
+    }
+
+    private static List<String> bestBboxSearchCells(BoundingBox bbox, CostFunction costFunction, boolean mixedResolution,
+            GeocellTrace trace) {
+        if(bbox.getEast() < bbox.getWest()) {
+            final BoundingBox bboxEast = new BoundingBox(bbox.getNorth(), 180.0, bbox.getSouth(), bbox.getWest());
+            final BoundingBox bboxWest = new BoundingBox(bbox.getNorth(), bbox.getEast(), bbox.getSouth(), -180.0);
+            final List<String> result = new ArrayList<String>(bestBboxSearchCells(bboxEast, costFunction, mixedResolution, trace));
+            result.addAll(bestBboxSearchCells(bboxWest, costFunction, mixedResolution, trace));
+            Collections.sort(result);
+            return result;
+        }
+        if(costFunction == null) {
+            costFunction = DEFAULT_COST_FUNCTION;
+        }
+
+        final long cellNE = PackedGeocellUtils.compute(bbox.getNorth(), bbox.getEast(), MAX_GEOCELL_RESOLUTION);
+        final long cellSW = PackedGeocellUtils.compute(bbox.getSouth(), bbox.getWest(), MAX_GEOCELL_RESOLUTION);
+
+        // Coarser cells than the common prefix of the corners would only add area.
+        int minResolution = 1;
+        while(minResolution < MAX_GEOCELL_RESOLUTION
+                && PackedGeocellUtils.parent(cellNE, minResolution + 1) == PackedGeocellUtils.parent(cellSW, minResolution + 1)) {
+            minResolution++;
+        }
+
+        double minCost = Double.MAX_VALUE;
+        int bestResolution = -1;
+        boolean bestMixed = false;
+        for(int curResolution = minResolution; curResolution <= MAX_GEOCELL_RESOLUTION; curResolution++) {
+            final long curNE = PackedGeocellUtils.parent(cellNE, curResolution);
+            final long curSW = PackedGeocellUtils.parent(cellSW, curResolution);
+            final int numCells = PackedGeocellUtils.interpolationCount(curNE, curSW);
+
+            if(numCells <= MAX_FEASIBLE_BBOX_SEARCH_CELLS) {
+                final double cost = costFunction.defaultCostFunction(numCells, curResolution);
+                if(cost <= minCost) {
+                    minCost = cost;
+                    bestResolution = curResolution;
+                    bestMixed = false;
+                }
+            }
+            if(mixedResolution && curResolution > minResolution) {
+                final int numMixedCells = mixedCellCount(curNE, curSW, minResolution);
+                if(numMixedCells <= MAX_FEASIBLE_BBOX_SEARCH_CELLS) {
+                    final double cost = costFunction.defaultCostFunction(numMixedCells, curResolution);
+                    if(cost <= minCost) {
+                        minCost = cost;
+                        bestResolution = curResolution;
+                        bestMixed = true;
+                    }
+                }
+            } else if(numCells > MAX_FEASIBLE_BBOX_SEARCH_CELLS) {
+                // Finer resolutions only need more cells.
+                break;
+            }
+        }
+
+        final List<String> result = new ArrayList<String>();
+        if(bestResolution < 0) {
+            return result;
+        }
+        // Both halves of a box crossing the antimeridian record their plan: the second one wins.
+        trace.setResolution(bestResolution);
+        trace.setCost(minCost);
+        final long curNE = PackedGeocellUtils.parent(cellNE, bestResolution);
+        final long curSW = PackedGeocellUtils.parent(cellSW, bestResolution);
+        if(bestMixed) {
+            final long minNE = PackedGeocellUtils.parent(cellNE, minResolution);
+            final long minSW = PackedGeocellUtils.parent(cellSW, minResolution);
+            for(int y = PackedGeocellUtils.y(minSW); y <= PackedGeocellUtils.y(minNE); y++) {
+                for(int x = PackedGeocellUtils.x(minSW); x <= PackedGeocellUtils.x(minNE); x++) {
+                    addMixedCells(PackedGeocellUtils.fromXY(x, y, minResolution), curNE, curSW, result);
+                }
+            }
+        } else {
+            final int xSW = PackedGeocellUtils.x(curSW);
+            final int xNE = PackedGeocellUtils.x(curNE);
+            for(int y = PackedGeocellUtils.y(curSW); y <= PackedGeocellUtils.y(curNE); y++) {
+                for(int x = xSW; x <= xNE; x++) {
+                    result.add(PackedGeocellUtils.toString(PackedGeocellUtils.fromXY(x, y, bestResolution)));
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Counts the cells of the mixed cover of the box spanned by the given cells: all cells
+     * between them at their resolution, minus 15 for every block of 16 that can be replaced
+     * by its parent, at every resolution down to minResolution.
+     */
+    private static int mixedCellCount(long cellNE, long cellSW, int minResolution) {
+        final int resolution = PackedGeocellUtils.resolution(cellNE);
+        final long x0 = PackedGeocellUtils.x(cellSW);
+        final long y0 = PackedGeocellUtils.y(cellSW);
+        final long x1 = PackedGeocellUtils.x(cellNE);
+        final long y1 = PackedGeocellUtils.y(cellNE);
+        long count = (x1 - x0 + 1) * (y1 - y0 + 1);
+        for(int level = resolution - 1; level >= minResolution; level--) {
+            final int shift = 2 * (resolution - level);
+            final long fullCols = Math.max(0, ((x1 + 1) >> shift) - ((x0 + (1L << shift) - 1) >> shift));
+            final long fullRows = Math.max(0, ((y1 + 1) >> shift) - ((y0 + (1L << shift) - 1) >> shift));
+            if(fullCols == 0 || fullRows == 0) {
+                break;
+            }
+            count -= 15 * fullCols * fullRows;
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds the mixed cover cells inside cell: the cell itself if it lies entirely inside the box
+     * spanned by cellNE and cellSW or has their resolution, otherwise the covers of its children.
+     */
+    private static void addMixedCells(long cell, long cellNE, long cellSW, List<String> result) {
+        final int resolution = PackedGeocellUtils.resolution(cellNE);
+        final int level = PackedGeocellUtils.resolution(cell);
+        final int shift = 2 * (resolution - level);
+        final long x = PackedGeocellUtils.x(cell);
+        final long y = PackedGeocellUtils.y(cell);
+        final long x0 = PackedGeocellUtils.x(cellSW);
+        final long y0 = PackedGeocellUtils.y(cellSW);
+        final long x1 = PackedGeocellUtils.x(cellNE);
+        final long y1 = PackedGeocellUtils.y(cellNE);
+
+        if(x > x1 >> shift || x < x0 >> shift || y > y1 >> shift || y < y0 >> shift) {
+            return;
+        }
+        if(shift == 0 || (x << shift >= x0 && ((x + 1) << shift) - 1 <= x1
+                && y << shift >= y0 && ((y + 1) << shift) - 1 <= y1)) {
+            result.add(PackedGeocellUtils.toString(cell));
+            return;
+        }
+        for(int i = 0; i < 16; i++) {
+            addMixedCells(PackedGeocellUtils.child(cell, i), cellNE, cellSW, result);
+        }
+    }
+
+    /**
+     * Grows a region of 1 or 2 cells towards its nearest edges.
+     *
+     * @return the grown region, or null if it has 4 cells or can't grow (poles)
+     */
+    private static List<String> expand(List<String> cells, List<Tuple<int[], Double>> sortedEdgeDistances) {
+        if(cells.size() == 1) {
+            for(final Tuple<int[], Double> edge : sortedEdgeDistances) {
+                final String adjacent = GeocellUtils.adjacent(cells.get(0), edge.getFirst());
+                if(adjacent != null) {
+                    final List<String> result = new ArrayList<String>(cells);
+                    result.add(adjacent);
+                    return result;
+                }
+            }
+        } else if(cells.size() == 2) {
+            // Same row: grow north or south; same column: grow east or west.
+            final boolean sameRow = GeocellUtils.collinear(cells.get(0), cells.get(1), false);
+            for(final Tuple<int[], Double> edge : sortedEdgeDistances) {
+                final int[] dir = edge.getFirst();
+                if(sameRow ? dir[0] != 0 : dir[1] != 0) {
+                    continue;
+                }
+                final String adjacent0 = GeocellUtils.adjacent(cells.get(0), dir);
+                final String adjacent1 = GeocellUtils.adjacent(cells.get(1), dir);
+                if(adjacent0 != null && adjacent1 != null) {
+                    final List<String> result = new ArrayList<String>(cells);
+                    result.add(adjacent0);
+                    result.add(adjacent1);
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Lower bound of the distance from the center, inside the region of cells, to any point
+    // outside of it. distanceSortedEdges can't be used: it measures the west and east edges along
+    // the center's parallel, which overstates the distance to a meridian.
+    private static double exitDistance(List<String> cells, Point center) {
+        double north = -90.0;
+        double south = 90.0;
+        // Longitudes relative to the center's, so regions crossing the antimeridian stay contiguous.
+        double west = Double.POSITIVE_INFINITY;
+        double east = Double.NEGATIVE_INFINITY;
+        for(final String cell : cells) {
+            final BoundingBox box = GeocellUtils.computeBox(cell);
+            north = Math.max(north, box.getNorth());
+            south = Math.min(south, box.getSouth());
+            final double relativeWest = ((box.getWest() - center.getLon()) % 360.0 + 540.0) % 360.0 - 180.0;
+            west = Math.min(west, relativeWest);
+            east = Math.max(east, relativeWest + box.getEast() - box.getWest());
+        }
+        double bound = Double.POSITIVE_INFINITY;
+        if(north < 90.0) {
+            bound = Math.min(bound, GeocellUtils.RADIUS * Math.toRadians(north - center.getLat()));
+        }
+        if(south > -90.0) {
+            bound = Math.min(bound, GeocellUtils.RADIUS * Math.toRadians(center.getLat() - south));
+        }
+        if(east - west < 360.0) {
+            bound = Math.min(bound, meridianDistance(center.getLat(), -west));
+            bound = Math.min(bound, meridianDistance(center.getLat(), east));
+        }
+        return bound;
+    }
+
+    // Lower bound of the distance from a point to the half meridian dLon degrees away: the
+    // distance to its great circle, R * asin(cos(lat) * sin(dLon)), up to 90 degrees, beyond
+    // which the nearest point is the pole.
+    private static double meridianDistance(double lat, double dLon) {
+        final double sinLon = Math.sin(Math.toRadians(Math.min(90.0, Math.max(0.0, dLon))));
+        return GeocellUtils.RADIUS * Math.asin(Math.min(1.0, Math.cos(Math.toRadians(lat)) * sinLon));
+    }
+
+    // Distance beyond which a new entity can't make it into the results.
+    private static <T> double searchBound(PriorityQueue<Tuple<T, Double>> best, int maxResults, double maxDistance) {
+        double bound = maxDistance > 0 ? maxDistance : Double.POSITIVE_INFINITY;
+        if(best.size() == maxResults) {
+            bound = Math.min(bound, best.peek().getSecond());
+        }
+        return bound;
+    }
+
+    // Lower bound of the distance between the point and the entities of the cell.
+    private static double minDistance(String cell, Point point, MutableBoundingBox box) {
+        if(cell.length() <= PackedGeocellUtils.MAX_RESOLUTION) {
+            PackedGeocellUtils.computeBox(PackedGeocellUtils.fromString(cell), box);
+        } else {
+            final BoundingBox bbox = GeocellUtils.computeBox(cell);
+            box.set(bbox.getNorth(), bbox.getEast(), bbox.getSouth(), bbox.getWest());
+        }
+        return GeocellUtils.minDistance(box, point.getLat(), point.getLon());
+    }
+
+    // Entities fetched again with a parent cell must only be counted once: they are recognised by
+    // their location lying in a finer cell already queried, whatever the type of the entities.
+    private static boolean inQueriedCell(Point location, int resolution, int maxResolution, Set<String> queried) {
+        final String cell = GeocellUtils.compute(location, maxResolution);
+        for(int length = resolution + 1; length <= maxResolution; length++) {
+            if(queried.contains(cell.substring(0, length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.beoui.geocell.model.GeocellRange;
+
+/**
+ * Turns lists of geocells into key ranges.
+ *
+ * Geocell strings sort in Z-order: the geocells starting with a given cell form one
+ * contiguous run of keys. A backend storing a single full resolution geocell per entity can
+ * therefore serve any cover of a region with a few range scans instead of an IN list
+ * holding every cell.
+ *
+ */
+public final class GeocellRangeUtils {
+
+    private static final String GEOCELL_ALPHABET = "0123456789abcdef";
+
+    private GeocellRangeUtils() {
+        // no instantiation allowed
+    }
+
+    /**
+     * Computes the smallest set of ranges holding exactly the geocells starting with one of the
+     * given cells. Cells may have different resolutions and may contain each other.
+     *
+     * Ranges are merged across gaps that only hold strings shorter than the cells (e.g. [a3f, a4)
+     * and [a40, a42) become [a3f, a42), although "a4" itself is in between), so the stored
+     * geocells must be at least as long as the cells, as they are when stored at full resolution.
+     *
+     * @param cells the geocell strings, for instance from interpolate() or bestBboxSearchCells()
+     * @return the ranges, sorted and disjoint
+     * @throws IllegalArgumentException if one of the cells is not a valid geocell
+     */
+    public static List<GeocellRange> toRanges(List<String> cells) {
+        final List<String> sorted = new ArrayList<String>(cells);
+        Collections.sort(sorted);
+
+        final List<GeocellRange> result = new ArrayList<GeocellRange>();
+        String min = null;
+        String max = null;
+        for(final String cell : sorted) {
+            if(cell.length() > 0 && !GeocellUtils.isValid(cell)) {
+                throw new IllegalArgumentException("Invalid geocell: " + cell);
+            }
+            if(min != null) {
+                if(max == null) {
+                    // Open range: holds this cell and everything after it.
+                    continue;
+                }
+                if(cell.compareTo(max) <= 0 || extendsWithZeros(cell, max)) {
+                    final String cellMax = upperBound(cell);
+                    if(cellMax == null || cellMax.compareTo(max) > 0) {
+                        max = cellMax;
+                    }
+                    continue;
+                }
+                result.add(new GeocellRange(min, max));
+            }
+            min = cell;
+            max = upperBound(cell);
+        }
+        if(min != null) {
+            result.add(new GeocellRange(min, max));
+        }
+        return result;
+    }
+
+    // Whether cell is bound followed by '0's: nothing shorter than cell lies between them.
+    private static boolean extendsWithZeros(String cell, String bound) {
+        if(!cell.startsWith(bound)) {
+            return false;
+        }
+        for(int i = bound.length(); i < cell.length(); i++) {
+            if(cell.charAt(i) != '0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the smallest string greater than every geocell starting with the given cell,
+     * e.g. "a4" for "a3f".
+     *
+     * @param cell a geocell string
+     * @return the exclusive upper bound, or null if the cell only has 'f' characters
+     */
+    public static String upperBound(String cell) {
+        int i = cell.length() - 1;
+        while(i >= 0 && cell.charAt(i) == 'f') {
+            i--;
+        }
+        if(i < 0) {
+            return null;
+        }
+        final char next = GEOCELL_ALPHABET.charAt(GEOCELL_ALPHABET.indexOf(cell.charAt(i)) + 1);
+        return cell.substring(0, i) + next;
+    }
+
+}
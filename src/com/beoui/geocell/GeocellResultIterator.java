@@ -0,0 +1,42 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.Iterator;
+
+/**
+ * Iterator over the entities of a streamed cell query, see {@link StreamingGeocellQueryEngine}.
+ *
+ * Entities are fetched lazily as they are pulled, so a caller that has enough candidates can
+ * stop early; {@link #cancel()} then releases what the engine holds for the query.
+ *
+ * @param <T> the type of the entities
+ */
+public interface GeocellResultIterator<T> extends Iterator<T> {
+
+    /**
+     * Stops the query: nothing more is fetched and {@link #hasNext()} returns false from then
+     * on. May be called from another thread than the one pulling the results, in which case a
+     * fetch already in progress completes but isn't returned. Calling it again has no effect.
+     */
+    void cancel();
+
+    /**
+     * @return the number of leading requested cells whose entities have all been returned, so
+     * that a caller knows the rest can only come from the following cells. May lag behind, e.g.
+     * until a whole page of cells has been returned.
+     */
+    int completedCells();
+
+}
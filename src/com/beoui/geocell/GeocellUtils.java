@@ -20,13 +20,19 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
 
 import com.beoui.geocell.annotations.Geocells;
 import com.beoui.geocell.annotations.Latitude;
 import com.beoui.geocell.annotations.Longitude;
 import com.beoui.geocell.comparator.DoubleTupleComparator;
 import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.GeocellPrefixList;
 import com.beoui.geocell.model.LocationCapable;
+import com.beoui.geocell.model.MutableBoundingBox;
 import com.beoui.geocell.model.Point;
 import com.beoui.geocell.model.Tuple;
 
@@ -72,8 +78,12 @@ public final class GeocellUtils {
     private static final int[] SOUTHWEST = new int[] {-1,-1};
     private static final int[] WEST = new int[] {-1,0};
 
+    // Location accessors per entity class.
+    private static final ConcurrentMap<Class<?>, GeocellAccessor<?>> ACCESSORS = new ConcurrentHashMap<Class<?>, GeocellAccessor<?>>();
 
-    private static final int RADIUS = 6378135;
+
+    // Earth radius in meters used by all distance computations.
+    public static final int RADIUS = 6378135;
 
     private GeocellUtils() {
         // no instantiation allowed
@@ -130,6 +140,16 @@ public final class GeocellUtils {
      * @return A list of geocell strings in the interpolation.
      */
     public static List<String> interpolate(String cellNE, String cellSW) {
+        if(cellNE.length() == cellSW.length() && cellNE.length() <= PackedGeocellUtils.MAX_RESOLUTION
+                && isValid(cellNE) && isValid(cellSW)) {
+            final GeocellIterator iterator = new GeocellIterator(cellNE, cellSW);
+            final List<String> result = new ArrayList<String>((int) Math.min(iterator.estimateSize(), Integer.MAX_VALUE));
+            while(iterator.hasNext()) {
+                result.add(iterator.next());
+            }
+            return result;
+        }
+
         // 2D array, will later be flattened.
         final LinkedList<LinkedList<String>> cellSet = new LinkedList<LinkedList<String>>();
         final LinkedList<String> cellFirst = new LinkedList<String>();
@@ -170,6 +190,18 @@ public final class GeocellUtils {
     }
 
 
+    /**
+     * Lazily iterates over the grid of cells formed between the two given cells, in the same
+       order as interpolate, without building the whole list first.
+     *
+     * @param cellNE: The Northeast geocell string.
+     * @param cellSW: The Southwest geocell string, of the same length, at most PackedGeocellUtils.MAX_RESOLUTION.
+     * @return An iterator over the geocell strings in the interpolation.
+     */
+    public static GeocellIterator interpolateIterator(String cellNE, String cellSW) {
+        return new GeocellIterator(cellNE, cellSW);
+    }
+
     /**
      * Computes the number of cells in the grid formed between two given cells.
 
@@ -182,7 +214,11 @@ public final class GeocellUtils {
      * @return An int, indicating the number of geocells in the interpolation.
      */
     public static int interpolationCount(String cellNE, String cellSW) {
-
+        if(cellNE.length() == cellSW.length() && cellNE.length() <= PackedGeocellUtils.MAX_RESOLUTION
+                && isValid(cellNE) && isValid(cellSW)) {
+            return PackedGeocellUtils.interpolationCount(
+                    PackedGeocellUtils.fromString(cellNE), PackedGeocellUtils.fromString(cellSW));
+        }
 
         final BoundingBox bboxNE = computeBox(cellNE);
         final BoundingBox bboxSW = computeBox(cellSW);
@@ -212,6 +248,39 @@ public final class GeocellUtils {
         return result;
     }
 
+    /**
+     * Calculates the geocells at Chebyshev distance exactly k from the given geocell, clockwise
+     * from the Northwest corner. For k = 1 these are the cells of allAdjacents(), without the
+     * None values. Wraps around the antimeridian and stops at the poles.
+     *
+     * @param cell: The geocell string, of at most PackedGeocellUtils.MAX_RESOLUTION characters.
+     * @param k: The distance in cells, 0 for the cell itself.
+     * @return A list of geocell strings, each listed once.
+     */
+    public static List<String> ring(String cell, int k) {
+        return toStrings(PackedGeocellUtils.ring(PackedGeocellUtils.fromString(cell), k));
+    }
+
+    /**
+     * Calculates the geocells at Chebyshev distance at most k from the given geocell, ring
+     * after ring, so nearer cells come first.
+     *
+     * @param cell: The geocell string, of at most PackedGeocellUtils.MAX_RESOLUTION characters.
+     * @param k: The maximum distance in cells.
+     * @return A list of geocell strings, each listed once.
+     */
+    public static List<String> disk(String cell, int k) {
+        return toStrings(PackedGeocellUtils.disk(PackedGeocellUtils.fromString(cell), k));
+    }
+
+    private static List<String> toStrings(long[] cells) {
+        final List<String> result = new ArrayList<String>(cells.length);
+        for(final long cell : cells) {
+            result.add(PackedGeocellUtils.toString(cell));
+        }
+        return result;
+    }
+
     /**
      * Calculates the geocell adjacent to the given cell in the given direction.
      *
@@ -312,48 +381,86 @@ public final class GeocellUtils {
      */
     public static double pointDistance(String cell, Point point) {
         final BoundingBox bbox = computeBox(cell);
+        final double lat = point.getLat();
+        final double lon = point.getLon();
 
-        final boolean betweenWE = bbox.getWest() <= point.getLon() && point.getLon() <= bbox.getEast();
-        final boolean betweenNS = bbox.getSouth() <= point.getLat() && point.getLat() <= bbox.getNorth();
+        final boolean betweenWE = bbox.getWest() <= lon && lon <= bbox.getEast();
+        final boolean betweenNS = bbox.getSouth() <= lat && lat <= bbox.getNorth();
 
         if(betweenWE) {
             if(betweenNS) {
                 // Inside the geocell.
                 return Math.min(
-                        Math.min(distance(point, new Point(bbox.getSouth(), point.getLon())),distance(point, new Point(bbox.getNorth(), point.getLon()))),
-                        Math.min(distance(point, new Point(point.getLat(), bbox.getEast())),distance(point, new Point(point.getLat(), bbox.getWest()))));
+                        Math.min(distance(lat, lon, bbox.getSouth(), lon), distance(lat, lon, bbox.getNorth(), lon)),
+                        Math.min(distance(lat, lon, lat, bbox.getEast()), distance(lat, lon, lat, bbox.getWest())));
             } else {
-                return Math.min(distance(point, new Point(bbox.getSouth(), point.getLon())),distance(point, new Point(bbox.getNorth(), point.getLon())));
+                return Math.min(distance(lat, lon, bbox.getSouth(), lon), distance(lat, lon, bbox.getNorth(), lon));
             }
         } else {
             if(betweenNS) {
-                return Math.min(distance(point, new Point(point.getLat(), bbox.getEast())),distance(point, new Point(point.getLat(), bbox.getWest())));
+                return Math.min(distance(lat, lon, lat, bbox.getEast()), distance(lat, lon, lat, bbox.getWest()));
             } else {
-                // TODO(romannurik): optimize
-                return Math.min(Math.min(distance(point, new Point(bbox.getSouth(), bbox.getEast())),distance(point, new Point(bbox.getNorth(), bbox.getEast()))),
-                        Math.min(distance(point, new Point(bbox.getSouth(), bbox.getWest())),distance(point, new Point(bbox.getNorth(), bbox.getWest()))));
+                return Math.min(Math.min(distance(lat, lon, bbox.getSouth(), bbox.getEast()), distance(lat, lon, bbox.getNorth(), bbox.getEast())),
+                        Math.min(distance(lat, lon, bbox.getSouth(), bbox.getWest()), distance(lat, lon, bbox.getNorth(), bbox.getWest())));
             }
         }
     }
+    /**
+     * Computes the geocells containing the given point, for all resolutions from 1 to
+     * maxResolution, in a single pass. All the geocells share one character array.
+     *
+     * @param point: The point to compute the geocells of.
+     * @param maxResolution: The resolution of the finest geocell.
+     * @return The geocells containing the point, ordered by increasing resolution.
+     */
+    public static GeocellPrefixList generateGeocells(Point point, int maxResolution) {
+        return generateGeocells(point, maxResolution, null);
+    }
+
+    /**
+     * Same as generateGeocells(Point, int), taking the geocell strings from the given pool
+     * so that entities sharing coarse cells share the strings.
+     *
+     * @param pool: The pool of geocell strings, or null.
+     */
+    public static GeocellPrefixList generateGeocells(Point point, int maxResolution, GeocellInternPool pool) {
+        if(maxResolution < 1) {
+            throw new IllegalArgumentException("Invalid resolution: " + maxResolution);
+        }
+        final char[] cell = new char[maxResolution];
+        if(maxResolution <= PackedGeocellUtils.MAX_RESOLUTION) {
+            PackedGeocellUtils.toChars(PackedGeocellUtils.compute(point.getLat(), point.getLon(), maxResolution), cell, 0);
+        } else {
+            compute(point, maxResolution).getChars(0, maxResolution, cell, 0);
+        }
+        return new GeocellPrefixList(cell, pool);
+    }
+
     /**
      * Computes the geocell containing the given point to the given resolution.
 
       This is a simple 16-tree lookup to an arbitrary depth (resolution).
+      Computed in double precision: up to PackedGeocellUtils.MAX_RESOLUTION the cell is
+      derived directly from the point's grid coordinates, beyond that by subdivision.
      *
      * @param point: The geotypes.Point to compute the cell for.
      * @param resolution: An int indicating the resolution of the cell to compute.
      * @return The geocell string containing the given point, of length resolution.
      */
     public static String compute(Point point, int resolution) {
-        float north = 90.0f;
-        float south = -90.0f;
-        float east = 180.0f;
-        float west = -180.0f;
+        if(resolution <= PackedGeocellUtils.MAX_RESOLUTION) {
+            return PackedGeocellUtils.toString(PackedGeocellUtils.compute(point.getLat(), point.getLon(), resolution));
+        }
+
+        double north = 90.0;
+        double south = -90.0;
+        double east = 180.0;
+        double west = -180.0;
 
-        final StringBuilder cell = new StringBuilder();
+        final StringBuilder cell = new StringBuilder(resolution);
         while(cell.length() < resolution) {
-            final float subcellLonSpan = (east - west) / GEOCELL_GRID_SIZE;
-            final float subcellLatSpan = (north - south) / GEOCELL_GRID_SIZE;
+            final double subcellLonSpan = (east - west) / GEOCELL_GRID_SIZE;
+            final double subcellLatSpan = (north - south) / GEOCELL_GRID_SIZE;
 
             final int x = Math.min((int)(GEOCELL_GRID_SIZE * (point.getLon() - west) / (east - west)),
                     GEOCELL_GRID_SIZE - 1);
@@ -372,6 +479,34 @@ public final class GeocellUtils {
         return cell.toString();
     }
 
+    /**
+     * Computes the geocells of a whole column of points in one call, in double precision.
+     *
+     * @param lats: The latitudes of the points.
+     * @param lons: The longitudes of the points, same length as lats.
+     * @param resolution: The resolution of the cells to compute, at most PackedGeocellUtils.MAX_RESOLUTION.
+     * @return The geocell strings, the cell of point i at index i.
+     */
+    public static String[] computeAll(double[] lats, double[] lons, int resolution) {
+        final String[] cells = new String[lats.length];
+        PackedGeocellUtils.checkBatch(lats, lons, resolution, cells.length);
+        PackedGeocellUtils.computeRange(lats, lons, resolution, null, cells, 0, lats.length);
+        return cells;
+    }
+
+    /**
+     * Same as computeAll(double[], double[], int), but splits the work across the threads of
+     * the given executor and the calling thread.
+     *
+     * @param executor: The executor to run the computation in.
+     */
+    public static String[] computeAll(double[] lats, double[] lons, int resolution, ExecutorService executor) {
+        final String[] cells = new String[lats.length];
+        PackedGeocellUtils.checkBatch(lats, lons, resolution, cells.length);
+        PackedGeocellUtils.computeAll(lats, lons, resolution, null, cells, executor);
+        return cells;
+    }
+
     /**
      * Computes the rectangular boundaries (bounding box) of the given geocell.
      *
@@ -455,16 +590,55 @@ public final class GeocellUtils {
      * @return The 2D great-circle distance between the two given points, in meters.
      */
     public static double distance(Point p1, Point p2) {
-        final double p1lat = Math.toRadians(p1.getLat());
-        final double p1lon = Math.toRadians(p1.getLon());
-        final double p2lat = Math.toRadians(p2.getLat());
-        final double p2lon = Math.toRadians(p2.getLon());
+        return distance(p1.getLat(), p1.getLon(), p2.getLat(), p2.getLon());
+    }
+
+    /**
+     * Calculates the great circle distance between two points given by their coordinates (law of cosines).
+     *
+     * @return The 2D great-circle distance between the two given points, in meters.
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        final double p1lat = Math.toRadians(lat1);
+        final double p1lon = Math.toRadians(lon1);
+        final double p2lat = Math.toRadians(lat2);
+        final double p2lon = Math.toRadians(lon2);
         return RADIUS
                 * Math.acos(makeDoubleInRange(Math.sin(p1lat) * Math.sin(p2lat)
                         + Math.cos(p1lat) * Math.cos(p2lat)
                         * Math.cos(p2lon - p1lon)));
     }
 
+    /**
+     * Returns a lower bound of the distance between a point and any point of a box, in meters.
+
+      Any path into the box crosses one of its parallels or one of its meridians. The distance
+      to a parallel is at least the latitude difference, and the distance to a meridian at
+      least the distance to its great circle, so the larger of the two is a safe bound for
+      pruning, unlike pointDistance which measures along parallels.
+     *
+     * @param box: The box, east greater than west.
+     * @param lat: The latitude of the point.
+     * @param lon: The longitude of the point.
+     * @return 0 if the point is inside the box, a lower bound of the distance otherwise.
+     */
+    public static double minDistance(MutableBoundingBox box, double lat, double lon) {
+        double latGap = 0;
+        if(lat < box.getSouth()) {
+            latGap = box.getSouth() - lat;
+        } else if(lat > box.getNorth()) {
+            latGap = lat - box.getNorth();
+        }
+        double lonBound = 0;
+        if(lon < box.getWest() || lon > box.getEast()) {
+            final double cosLat = Math.cos(Math.toRadians(lat));
+            final double west = Math.abs(Math.sin(Math.toRadians(lon - box.getWest())));
+            final double east = Math.abs(Math.sin(Math.toRadians(lon - box.getEast())));
+            lonBound = RADIUS * Math.asin(makeDoubleInRange(cosLat * Math.min(west, east)));
+        }
+        return Math.max(RADIUS * Math.toRadians(latGap), lonBound);
+    }
+
     /**
      * This function is used to fix issue 10:
      * GeocellUtils.distance(...) uses Math.acos(arg) method. In some cases arg > 1 (i.e 1.0000000002), so acos cannot be calculated and the method returns NaN.
@@ -512,10 +686,12 @@ public final class GeocellUtils {
             maxWest = Math.min(maxWest, box.getWest());
         }
         final List<Tuple<int[],Double>> result = new ArrayList<Tuple<int[],Double>>();
-        result.add(new Tuple<int[], Double>(SOUTH, distance(new Point(maxSouth, point.getLon()), point)));
-        result.add(new Tuple<int[], Double>(NORTH, distance(new Point(maxNorth, point.getLon()), point)));
-        result.add(new Tuple<int[], Double>(WEST, distance(new Point(point.getLat(), maxWest), point)));
-        result.add(new Tuple<int[], Double>(EAST, distance(new Point(point.getLat(), maxEast), point)));
+        final double lat = point.getLat();
+        final double lon = point.getLon();
+        result.add(new Tuple<int[], Double>(SOUTH, distance(maxSouth, lon, lat, lon)));
+        result.add(new Tuple<int[], Double>(NORTH, distance(maxNorth, lon, lat, lon)));
+        result.add(new Tuple<int[], Double>(WEST, distance(lat, maxWest, lat, lon)));
+        result.add(new Tuple<int[], Double>(EAST, distance(lat, maxEast, lat, lon)));
         Collections.sort(result, new DoubleTupleComparator());
         return result;
     }
@@ -543,25 +719,71 @@ public final class GeocellUtils {
         return null;
     }
 
+    /**
+     * Returns the accessor of the given entity class: the one generated at compile time for the
+     * class or its closest superclass, or else one using reflection. Accessors are looked up once
+     * per class.
+     *
+     * @param type the entity class, annotated with Latitude, Longitude and Geocells
+     * @return the accessor
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> GeocellAccessor<? super T> getAccessor(Class<T> type) {
+        GeocellAccessor<?> accessor = ACCESSORS.get(type);
+        if(accessor == null) {
+            accessor = findGeneratedAccessor(type);
+            if(accessor == null) {
+                accessor = new ReflectiveAccessor(type);
+            }
+            ACCESSORS.putIfAbsent(type, accessor);
+        }
+        return (GeocellAccessor<? super T>) accessor;
+    }
+
+    private static GeocellAccessor<?> findGeneratedAccessor(Class<?> type) {
+        for(Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            try {
+                final Class<?> generated = Class.forName(current.getName().replace('$', '_') + "_GeocellAccessor",
+                        true, current.getClassLoader());
+                return (GeocellAccessor<?>) generated.newInstance();
+            } catch (final ClassNotFoundException e) {
+                // not generated for this class, try its superclass
+            } catch (final InstantiationException e) {
+                GeocellLogger.get().log(Level.WARNING, "Can't instantiate the geocell accessor of " + current, e);
+            } catch (final IllegalAccessException e) {
+                GeocellLogger.get().log(Level.WARNING, "Can't instantiate the geocell accessor of " + current, e);
+            }
+        }
+        return null;
+    }
+
     public static Point getLocation(Object entity) {
         if(entity instanceof LocationCapable) {
             return ((LocationCapable) entity).getLocation();
         }
+        return getLocation(entity, new Point());
+    }
 
-        final Point location = new Point();
-
-        try {
-            location.setLat(getField(entity.getClass(), Latitude.class).getDouble(entity));
-            location.setLon(getField(entity.getClass(), Longitude.class).getDouble(entity));
-        } catch (final IllegalArgumentException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
-        } catch (final IllegalAccessException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+    /**
+     * Same as {@link #getLocation(Object)}, filling the given point instead of allocating one.
+     *
+     * @param entity the entity
+     * @param reuse the point to fill
+     * @return reuse
+     */
+    public static Point getLocation(Object entity, Point reuse) {
+        if(entity instanceof LocationCapable) {
+            final Point location = ((LocationCapable) entity).getLocation();
+            reuse.setLat(location.getLat());
+            reuse.setLon(location.getLon());
+            return reuse;
         }
 
-        return location;
+        @SuppressWarnings("unchecked")
+        final GeocellAccessor<Object> accessor = (GeocellAccessor<Object>) getAccessor(entity.getClass());
+        reuse.setLat(accessor.getLatitude(entity));
+        reuse.setLon(accessor.getLongitude(entity));
+        return reuse;
     }
 
     public static String getGeocellsFieldName(Class<?> type) {
@@ -569,6 +791,46 @@ public final class GeocellUtils {
             return "geocells";
         }
 
-        return getField(type, Geocells.class).getName();
+        return getAccessor(type).getGeocellsFieldName();
+    }
+
+    /**
+     * Fallback for entity classes without a generated accessor, looking the annotated fields up once.
+     */
+    private static final class ReflectiveAccessor implements GeocellAccessor<Object> {
+
+        private final Field latitude;
+        private final Field longitude;
+        private final Field geocells;
+
+        ReflectiveAccessor(Class<?> type) {
+            this.latitude = getField(type, Latitude.class);
+            this.longitude = getField(type, Longitude.class);
+            this.geocells = getField(type, Geocells.class);
+        }
+
+        public double getLatitude(Object entity) {
+            return getDouble(latitude, Latitude.class, entity);
+        }
+
+        public double getLongitude(Object entity) {
+            return getDouble(longitude, Longitude.class, entity);
+        }
+
+        public String getGeocellsFieldName() {
+            return geocells.getName();
+        }
+
+        // A location that can't be read is an error, not a point at 0.
+        private static double getDouble(Field field, Class<? extends Annotation> annotation, Object entity) {
+            if(field == null) {
+                throw new IllegalStateException(entity.getClass() + " has no @" + annotation.getSimpleName() + " field");
+            }
+            try {
+                return field.getDouble(entity);
+            } catch (final IllegalAccessException e) {
+                throw new IllegalStateException("Can't read " + field + " of " + entity.getClass(), e);
+            }
+        }
     }
 }
@@ -0,0 +1,342 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.CircleRegion;
+import com.beoui.geocell.model.GeocellRegion;
+import com.beoui.geocell.model.MutableBoundingBox;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.RectangleRegion;
+
+/**
+ * Matches a stream of location fixes against many fences and reports when subjects (devices,
+ * users...) enter or exit them.
+ *
+ * Each fence is covered once, when it is added: cells completely inside the fence are kept as
+ * coarse as possible, and the cells crossing its edge are refined down to a fixed resolution.
+ * Each fix then costs one packed cell computation and one hash lookup per resolution actually
+ * used by the covers (usually a handful): the fences covering a whole cell match directly, and
+ * only the fences crossing the fix's cell are tested exactly. The resolution should give cells
+ * somewhat smaller than the typical fence, so that few fences need the exact test.
+ *
+ * Thread safe. Fixes of different subjects can be processed concurrently; the fixes of one
+ * subject are processed one at a time, and its events are delivered in order on the thread
+ * calling {@link #update(Object, double, double)}.
+ *
+ * @param <S> the type of the subjects, identified with equals()/hashCode()
+ * @param <F> the type of the fences, identified with equals()/hashCode()
+ */
+public class GeofenceIndex<S, F> {
+
+    /**
+     * Receives the enter and exit events of {@link GeofenceIndex#update(Object, double, double)}.
+     */
+    public interface Listener<S, F> {
+
+        void onEnter(S subject, F fence);
+
+        void onExit(S subject, F fence);
+
+    }
+
+    /**
+     * Default resolution of the cells on the edges of the fences, about 150m x 75m.
+     */
+    public static final int DEFAULT_RESOLUTION = 9;
+
+    private static final Object[] NO_FENCES = new Object[0];
+
+    private final int resolution;
+    private final Listener<S, F> listener;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by lock.
+    private final LongHashMap<Cell> cells = new LongHashMap<Cell>();
+    private final Map<F, long[]> fences = new HashMap<F, long[]>();
+    // Number of cells of each resolution, so that fixes only look up the resolutions in use.
+    private final int[] resolutionCounts = new int[PackedGeocellUtils.MAX_RESOLUTION + 1];
+    private final ConcurrentMap<S, Set<F>> subjects = new ConcurrentHashMap<S, Set<F>>();
+
+    public GeofenceIndex(Listener<S, F> listener) {
+        this(DEFAULT_RESOLUTION, listener);
+    }
+
+    /**
+     * @param resolution resolution of the cells on the edges of the fences, between 1 and PackedGeocellUtils.MAX_RESOLUTION
+     * @param listener the listener of the enter and exit events
+     */
+    public GeofenceIndex(int resolution, Listener<S, F> listener) {
+        if(resolution < 1 || resolution > PackedGeocellUtils.MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        this.resolution = resolution;
+        this.listener = listener;
+    }
+
+    /**
+     * @param fence the fence
+     * @param center the center of the circle
+     * @param radius the radius in meters
+     */
+    public void addCircle(F fence, Point center, double radius) {
+        addFence(fence, new CircleRegion(center, radius));
+    }
+
+    /**
+     * @param fence the fence
+     * @param bbox the box; east may be lower than west when the box crosses the antimeridian
+     */
+    public void addRectangle(F fence, BoundingBox bbox) {
+        if(bbox.getEast() < bbox.getWest()) {
+            final RectangleRegion east = new RectangleRegion(new BoundingBox(bbox.getNorth(), 180.0, bbox.getSouth(), bbox.getWest()));
+            final RectangleRegion west = new RectangleRegion(new BoundingBox(bbox.getNorth(), bbox.getEast(), bbox.getSouth(), -180.0));
+            addFence(fence, new GeocellRegion() {
+                public boolean containsPoint(double lat, double lon) {
+                    return east.containsPoint(lat, lon) || west.containsPoint(lat, lon);
+                }
+
+                public boolean intersects(MutableBoundingBox box) {
+                    return east.intersects(box) || west.intersects(box);
+                }
+
+                public boolean contains(MutableBoundingBox box) {
+                    return east.contains(box) || west.contains(box);
+                }
+            });
+        } else {
+            addFence(fence, new RectangleRegion(bbox));
+        }
+    }
+
+    /**
+     * Adds a fence, or replaces the region of an existing one. Subjects only enter or exit the
+     * fence at their next fix.
+     *
+     * @param fence the fence
+     * @param region the region of the fence
+     */
+    public void addFence(F fence, GeocellRegion region) {
+        // Covering can take a while for big fences: do it outside of the lock.
+        final long[] covering = new GeocellCoverer(Integer.MAX_VALUE, 1, resolution).coverPacked(region);
+        final boolean[] inside = new boolean[covering.length];
+        final MutableBoundingBox box = new MutableBoundingBox();
+        for(int i = 0; i < covering.length; i++) {
+            inside[i] = region.contains(PackedGeocellUtils.computeBox(covering[i], box));
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeCells(fence);
+            fences.put(fence, covering);
+            for(int i = 0; i < covering.length; i++) {
+                Cell cell = cells.get(covering[i]);
+                if(cell == null) {
+                    cell = new Cell();
+                    cells.put(covering[i], cell);
+                    resolutionCounts[PackedGeocellUtils.resolution(covering[i])]++;
+                }
+                if(inside[i]) {
+                    cell.inside = append(cell.inside, fence);
+                } else {
+                    cell.boundary = append(cell.boundary, fence);
+                    cell.boundaryRegions = append(cell.boundaryRegions, region);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a fence. Subjects inside it don't get exit events.
+     *
+     * @return whether the fence was registered
+     */
+    public boolean removeFence(F fence) {
+        lock.writeLock().lock();
+        try {
+            if(!removeCells(fence)) {
+                return false;
+            }
+            fences.remove(fence);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for(final Set<F> inside : subjects.values()) {
+            synchronized(inside) {
+                inside.remove(fence);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of fences
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return fences.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the fences containing the given point.
+     *
+     * @param lat latitude of the point
+     * @param lon longitude of the point
+     * @return the fences containing the point, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    public List<F> query(double lat, double lon) {
+        final long key = PackedGeocellUtils.compute(lat, lon, resolution);
+        final List<F> result = new ArrayList<F>();
+        lock.readLock().lock();
+        try {
+            for(int curResolution = resolution; curResolution > 0; curResolution--) {
+                if(resolutionCounts[curResolution] == 0) {
+                    continue;
+                }
+                final Cell cell = cells.get(PackedGeocellUtils.parent(key, curResolution));
+                if(cell == null) {
+                    continue;
+                }
+                for(final Object fence : cell.inside) {
+                    result.add((F) fence);
+                }
+                for(int i = 0; i < cell.boundary.length; i++) {
+                    if(((GeocellRegion) cell.boundaryRegions[i]).containsPoint(lat, lon)) {
+                        result.add((F) cell.boundary[i]);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Processes a location fix of a subject, calling the listener for every fence it entered or
+     * exited since its previous fix.
+     *
+     * @param subject the subject
+     * @param lat latitude of the fix
+     * @param lon longitude of the fix
+     */
+    public void update(S subject, double lat, double lon) {
+        Set<F> inside = subjects.get(subject);
+        if(inside == null) {
+            final Set<F> created = new LinkedHashSet<F>();
+            inside = subjects.putIfAbsent(subject, created);
+            if(inside == null) {
+                inside = created;
+            }
+        }
+        synchronized(inside) {
+            final List<F> current = query(lat, lon);
+            final List<F> exited = new ArrayList<F>();
+            for(final F fence : inside) {
+                if(!current.contains(fence)) {
+                    exited.add(fence);
+                }
+            }
+            for(final F fence : exited) {
+                inside.remove(fence);
+                listener.onExit(subject, fence);
+            }
+            for(final F fence : current) {
+                if(inside.add(fence)) {
+                    listener.onEnter(subject, fence);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets a subject, without exit events.
+     */
+    public void removeSubject(S subject) {
+        subjects.remove(subject);
+    }
+
+    // Called with the write lock held.
+    private boolean removeCells(F fence) {
+        final long[] previous = fences.get(fence);
+        if(previous == null) {
+            return false;
+        }
+        for(final long key : previous) {
+            final Cell cell = cells.get(key);
+            final int index = indexOf(cell.boundary, fence);
+            if(index >= 0) {
+                cell.boundary = removeAt(cell.boundary, index);
+                cell.boundaryRegions = removeAt(cell.boundaryRegions, index);
+            } else {
+                cell.inside = removeAt(cell.inside, indexOf(cell.inside, fence));
+            }
+            if(cell.inside.length == 0 && cell.boundary.length == 0) {
+                cells.remove(key);
+                resolutionCounts[PackedGeocellUtils.resolution(key)]--;
+            }
+        }
+        return true;
+    }
+
+    private static Object[] append(Object[] array, Object value) {
+        final Object[] result = new Object[array.length + 1];
+        System.arraycopy(array, 0, result, 0, array.length);
+        result[array.length] = value;
+        return result;
+    }
+
+    private static Object[] removeAt(Object[] array, int index) {
+        final Object[] result = new Object[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static int indexOf(Object[] array, Object value) {
+        for(int i = 0; i < array.length; i++) {
+            if(array[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Fences of one cell: the ones covering the whole cell, and the ones crossing it with their regions.
+     */
+    private static final class Cell {
+        Object[] inside = NO_FENCES;
+        Object[] boundary = NO_FENCES;
+        Object[] boundaryRegions = NO_FENCES;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+/**
+ * Open addressing hash map from packed cells to values, without boxing the keys, see
+ * {@link LongHashTable}.
+ *
+ * @param <V> the type of the values
+ */
+final class LongHashMap<V> extends LongHashTable {
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        final int slot = find(key);
+        return slot < 0 ? null : (V) ((Object[]) values)[slot];
+    }
+
+    /**
+     * @return the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        int slot = find(key);
+        final V previous = slot < 0 ? null : (V) ((Object[]) values)[slot];
+        if(slot < 0) {
+            slot = insert(key, slot);
+        }
+        ((Object[]) values)[slot] = value;
+        return previous;
+    }
+
+    /**
+     * @return the removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        final int slot = find(key);
+        if(slot < 0) {
+            return null;
+        }
+        final V previous = (V) ((Object[]) values)[slot];
+        delete(slot);
+        return previous;
+    }
+
+    Object newValues(int capacity) {
+        return new Object[capacity];
+    }
+
+    void clearValue(int slot) {
+        ((Object[]) values)[slot] = null;
+    }
+
+}
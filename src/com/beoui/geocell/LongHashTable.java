@@ -0,0 +1,137 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table of packed cells, without boxing the keys: linear probing under a
+ * load factor of 1/2, and backward shift deletion. Subclasses keep the values in a parallel
+ * array of their own type, moved along with the keys.
+ * Keys must not be negative (packed cells never are). Not thread safe.
+ */
+abstract class LongHashTable {
+
+    private static final long EMPTY = -1L;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    // The array returned by newValues, indexed by slot.
+    Object values;
+    private int size;
+    private int mask;
+
+    LongHashTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return an array of values with the given length; called before the subclass is initialized
+     */
+    abstract Object newValues(int capacity);
+
+    /**
+     * Resets the value of a slot left empty by a deletion.
+     */
+    abstract void clearValue(int slot);
+
+    final int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot of the key, or (-(insertion slot) - 1) if the key is absent
+     */
+    final int find(long key) {
+        int slot = slot(key);
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /**
+     * Adds an absent key, its value being the one the empty slot was cleared to.
+     *
+     * @param notFound what find returned for the key
+     * @return the slot of the key
+     */
+    final int insert(long key, int notFound) {
+        if(key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        int slot = -notFound - 1;
+        // Keep the load factor under 1/2 so that probe sequences stay short.
+        if(size + 1 > (mask + 1) >> 1) {
+            rehash((mask + 1) << 1);
+            slot = -find(key) - 1;
+        }
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    // Backward shift deletion: moves the following entries of the probe run back into the hole.
+    final void delete(int hole) {
+        int slot = hole;
+        while(true) {
+            slot = (slot + 1) & mask;
+            if(keys[slot] == EMPTY) {
+                break;
+            }
+            final int home = slot(keys[slot]);
+            // Move the entry if its home isn't cyclically within (hole, slot].
+            if(((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                System.arraycopy(values, slot, values, hole, 1);
+                hole = slot;
+            }
+        }
+        keys[hole] = EMPTY;
+        clearValue(hole);
+        size--;
+    }
+
+    private int slot(long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = newValues(capacity);
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final Object oldValues = values;
+        allocate(capacity);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while(keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                System.arraycopy(oldValues, i, values, slot, 1);
+            }
+        }
+    }
+
+}
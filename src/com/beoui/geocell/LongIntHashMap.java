@@ -0,0 +1,58 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+/**
+ * Open addressing hash map from packed cells to counts, without boxing the keys or the
+ * values, see {@link LongHashTable}. Absent keys count 0, and keys whose count drops to 0
+ * are removed.
+ */
+final class LongIntHashMap extends LongHashTable {
+
+    int get(long key) {
+        final int slot = find(key);
+        return slot < 0 ? 0 : ((int[]) values)[slot];
+    }
+
+    /**
+     * Adds delta to the count of the key.
+     *
+     * @return the new count
+     */
+    int add(long key, int delta) {
+        int slot = find(key);
+        if(slot < 0) {
+            if(delta == 0) {
+                return 0;
+            }
+            slot = insert(key, slot);
+        }
+        final int count = ((int[]) values)[slot] + delta;
+        if(count == 0) {
+            delete(slot);
+        } else {
+            ((int[]) values)[slot] = count;
+        }
+        return count;
+    }
+
+    Object newValues(int capacity) {
+        return new int[capacity];
+    }
+
+    void clearValue(int slot) {
+        ((int[]) values)[slot] = 0;
+    }
+
+}
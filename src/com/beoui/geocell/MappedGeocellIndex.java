@@ -0,0 +1,336 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.beoui.geocell.distance.DistanceFunction;
+import com.beoui.geocell.distance.LawOfCosinesDistance;
+import com.beoui.geocell.distance.PreparedPoint;
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.CircleRegion;
+import com.beoui.geocell.model.GeocellQuery;
+import com.beoui.geocell.model.GeocellRegion;
+import com.beoui.geocell.model.MutableBoundingBox;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.RectangleRegion;
+import com.beoui.geocell.model.Tuple;
+
+/**
+ * Read-only index of entities served straight from a file written by
+ * {@link MappedGeocellIndexWriter}, typically memory mapped with {@link #open(File, PayloadDecoder)}.
+ *
+ * Nothing is loaded up front: cells are located by binary search over the sorted records and
+ * only the payloads of matching records are decoded, so opening is instant and only the pages
+ * touched by queries are read.
+ *
+ * As a StreamingGeocellQueryEngine it answers the cell queries of GeocellManager, all at once or
+ * record by record; as there are no properties to filter on, base queries with a filter are
+ * rejected. Instances are thread safe as long as the decoder is.
+ *
+ * @param <E> the type of the decoded entities
+ */
+public class MappedGeocellIndex<E> implements StreamingGeocellQueryEngine {
+
+    /**
+     * Turns the payload of a record back into an entity.
+     */
+    public interface PayloadDecoder<E> {
+
+        /**
+         * @param payload the payload bytes between position and limit. Only valid during the call.
+         * @return the entity
+         */
+        E decode(ByteBuffer payload);
+
+    }
+
+    private static final int COVER_MAX_CELLS = 32;
+    private static final DistanceFunction DEFAULT_DISTANCE_FUNCTION = new LawOfCosinesDistance();
+
+    private final ByteBuffer buffer;
+    private final PayloadDecoder<E> decoder;
+    private final int resolution;
+    private final int count;
+    private final int payloadStart;
+
+    /**
+     * @param buffer the whole index file, e.g. mapped or read from an asset
+     * @param decoder the decoder of the payloads
+     * @throws IllegalArgumentException if the buffer doesn't hold an index
+     */
+    public MappedGeocellIndex(ByteBuffer buffer, PayloadDecoder<E> decoder) {
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.decoder = decoder;
+        if(buffer.capacity() < MappedGeocellIndexWriter.HEADER_SIZE
+                || this.buffer.getInt(0) != MappedGeocellIndexWriter.MAGIC) {
+            throw new IllegalArgumentException("Not a geocell index");
+        }
+        if(this.buffer.getInt(4) != MappedGeocellIndexWriter.VERSION) {
+            throw new IllegalArgumentException("Unsupported geocell index version: " + this.buffer.getInt(4));
+        }
+        this.resolution = this.buffer.getInt(8);
+        this.count = this.buffer.getInt(12);
+        final long start = this.buffer.getLong(16);
+        if(start + this.buffer.getLong(24) > buffer.capacity()) {
+            throw new IllegalArgumentException("Truncated geocell index");
+        }
+        this.payloadStart = (int) start;
+    }
+
+    /**
+     * Maps the given index file read-only.
+     */
+    public static <E> MappedGeocellIndex<E> open(File file, PayloadDecoder<E> decoder) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed.
+            final FileChannel channel = raf.getChannel();
+            return new MappedGeocellIndex<E>(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), decoder);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the number of entities in the index
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the resolution of the stored cells
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    public <T> List<T> query(GeocellQuery baseQuery, List<String> curGeocellsUnique, Class<T> entityClass) {
+        final List<T> result = new ArrayList<T>();
+        final GeocellResultIterator<T> entities = queryIterator(baseQuery, curGeocellsUnique, entityClass);
+        while(entities.hasNext()) {
+            result.add(entities.next());
+        }
+        return result;
+    }
+
+    /**
+     * Streams the entities of the cells, decoding each one only when it is pulled.
+     */
+    public <T> GeocellResultIterator<T> queryIterator(GeocellQuery baseQuery, List<String> curGeocellsUnique,
+            Class<T> entityClass) {
+        if(baseQuery != null && baseQuery.getBaseQuery() != null && baseQuery.getBaseQuery().length() > 0) {
+            throw new IllegalArgumentException("Mapped geocell indexes can't filter on " + baseQuery.getBaseQuery());
+        }
+        return new CellIterator<T>(new ArrayList<String>(curGeocellsUnique), entityClass);
+    }
+
+    /**
+     * Returns the entities inside the given bounding box.
+     *
+     * @param bbox the box; east may be lower than west when the box crosses the antimeridian
+     * @return the entities inside the box, in no particular order
+     */
+    public List<E> query(BoundingBox bbox) {
+        final List<E> result = new ArrayList<E>();
+        if(bbox.getEast() < bbox.getWest()) {
+            collectInBox(new RectangleRegion(new BoundingBox(bbox.getNorth(), 180.0, bbox.getSouth(), bbox.getWest())), result);
+            collectInBox(new RectangleRegion(new BoundingBox(bbox.getNorth(), bbox.getEast(), bbox.getSouth(), -180.0)), result);
+        } else {
+            collectInBox(new RectangleRegion(bbox), result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entities within the given distance of a point.
+     *
+     * @param center the center of the search
+     * @param maxDistance the maximum distance in meters
+     * @return the entities found, sorted by increasing distance from the center
+     */
+    public List<E> query(Point center, double maxDistance) {
+        return query(center, maxDistance, DEFAULT_DISTANCE_FUNCTION);
+    }
+
+    /**
+     * Same as {@link #query(Point, double)}, measuring distances with the given function.
+     *
+     * @param distanceFunction the distance used to filter and sort the entities
+     */
+    public List<E> query(Point center, double maxDistance, DistanceFunction distanceFunction) {
+        final PreparedPoint preparedCenter = distanceFunction.prepare(center.getLat(), center.getLon());
+        final List<Tuple<Integer, Double>> found = new ArrayList<Tuple<Integer, Double>>();
+        for(final long cell : cover(new CircleRegion(center, maxDistance))) {
+            final int end = upperBound(cell);
+            for(int i = lowerBound(cell); i < end; i++) {
+                final double distance = preparedCenter.distanceTo(lat(i), lon(i));
+                if(distance <= maxDistance) {
+                    found.add(new Tuple<Integer, Double>(i, distance));
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<Tuple<Integer, Double>>() {
+            public int compare(Tuple<Integer, Double> o1, Tuple<Integer, Double> o2) {
+                return o1.getSecond().compareTo(o2.getSecond());
+            }
+        });
+        // Decode only the matches.
+        final List<E> result = new ArrayList<E>(found.size());
+        for(final Tuple<Integer, Double> tuple : found) {
+            result.add(decode(tuple.getFirst()));
+        }
+        return result;
+    }
+
+    private void collectInBox(RectangleRegion region, List<E> result) {
+        final BoundingBox bbox = region.getBoundingBox();
+        final MutableBoundingBox box = new MutableBoundingBox();
+        for(final long cell : cover(region)) {
+            final boolean inside = region.contains(PackedGeocellUtils.computeBox(cell, box));
+            final int end = upperBound(cell);
+            for(int i = lowerBound(cell); i < end; i++) {
+                final double lat = lat(i);
+                final double lon = lon(i);
+                if(inside || (lat >= bbox.getSouth() && lat <= bbox.getNorth() && lon >= bbox.getWest() && lon <= bbox.getEast())) {
+                    result.add(decode(i));
+                }
+            }
+        }
+    }
+
+    private long[] cover(GeocellRegion region) {
+        return new GeocellCoverer(COVER_MAX_CELLS, 1, resolution).coverPacked(region);
+    }
+
+    private static int record(int index) {
+        return MappedGeocellIndexWriter.HEADER_SIZE + index * MappedGeocellIndexWriter.RECORD_SIZE;
+    }
+
+    private long cell(int index) {
+        return buffer.getLong(record(index));
+    }
+
+    private double lat(int index) {
+        return buffer.getDouble(record(index) + 8);
+    }
+
+    private double lon(int index) {
+        return buffer.getDouble(record(index) + 16);
+    }
+
+    private E decode(int index) {
+        final int offset = payloadStart + buffer.getInt(record(index) + 24);
+        final int length = buffer.getInt(record(index) + 28);
+        final ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + length).position(offset);
+        return decoder.decode(payload);
+    }
+
+    // Index of the first record inside the cell.
+    private int lowerBound(long cell) {
+        return search(cell);
+    }
+
+    // Index after the last record inside the cell, see PointBatch.upperBound().
+    private int upperBound(long cell) {
+        final long last = cell | ((1L << (63 - 4 * PackedGeocellUtils.resolution(cell))) - 1);
+        return last == Long.MAX_VALUE ? count : search(last + 1);
+    }
+
+    // Index of the first record whose cell is >= key.
+    private int search(long key) {
+        int low = 0;
+        int high = count;
+        while(low < high) {
+            final int mid = (low + high) >>> 1;
+            if(cell(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Walks the records of each cell in turn; cells finer than the index are filtered by location.
+    private final class CellIterator<T> implements GeocellResultIterator<T> {
+
+        private final List<String> geocells;
+        private final Class<T> entityClass;
+        private int nextGeocell;
+        private String geocell;
+        private boolean filter;
+        private int position;
+        private int end;
+        private volatile boolean cancelled;
+
+        CellIterator(List<String> geocells, Class<T> entityClass) {
+            this.geocells = geocells;
+            this.entityClass = entityClass;
+        }
+
+        public boolean hasNext() {
+            while(!cancelled) {
+                for(; position < end; position++) {
+                    if(!filter || GeocellUtils.containsPoint(geocell, new Point(lat(position), lon(position)))) {
+                        return true;
+                    }
+                }
+                if(nextGeocell == geocells.size()) {
+                    return false;
+                }
+                geocell = geocells.get(nextGeocell++);
+                final int length = Math.min(geocell.length(), resolution);
+                final long cell = PackedGeocellUtils.fromString(geocell.substring(0, length));
+                filter = length < geocell.length();
+                position = lowerBound(cell);
+                end = upperBound(cell);
+            }
+            return false;
+        }
+
+        public T next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entityClass.cast(decode(position++));
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public int completedCells() {
+            return geocell == null || position >= end ? nextGeocell : nextGeocell - 1;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.beoui.geocell.model.PointBatch;
+
+/**
+ * Writes the immutable index files read by {@link MappedGeocellIndex}.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header   magic "GCIX", version, resolution, record count (4 bytes each),
+ *            payload area offset, payload area length (8 bytes each)
+ *   records  packed cell (8), latitude (8), longitude (8), payload offset (4), payload length (4),
+ *            sorted by cell
+ *   payloads the payload bytes, offsets relative to the payload area
+ * </pre>
+ * Files are mapped as a single buffer, so they must stay under 2GB.
+ *
+ */
+public class MappedGeocellIndexWriter {
+
+    static final int MAGIC = 0x47434958;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+
+    private final int resolution;
+    private final PointBatch points = new PointBatch();
+    private final List<byte[]> payloads = new ArrayList<byte[]>();
+    private long payloadLength;
+
+    /**
+     * @param resolution resolution of the stored cells, between 1 and PackedGeocellUtils.MAX_RESOLUTION.
+     *            Queries on coarser cells are range scans; finer cells also filter the records.
+     */
+    public MappedGeocellIndexWriter(int resolution) {
+        if(resolution < 1 || resolution > PackedGeocellUtils.MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        this.resolution = resolution;
+    }
+
+    /**
+     * @param lat latitude of the entity
+     * @param lon longitude of the entity
+     * @param payload the serialized entity, given back to the PayloadDecoder
+     */
+    public void add(double lat, double lon, byte[] payload) {
+        if(HEADER_SIZE + (long) (points.size() + 1) * RECORD_SIZE + payloadLength + payload.length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The index would not fit in a single mapped buffer");
+        }
+        points.add(lat, lon, payloads.size());
+        payloads.add(payload);
+        payloadLength += payload.length;
+    }
+
+    public void write(File file) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the index. The stream is flushed but not closed.
+     */
+    public void write(OutputStream stream) throws IOException {
+        points.computeCells(resolution);
+        points.sortByCell();
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        final int count = points.size();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(resolution);
+        out.writeInt(count);
+        out.writeLong(HEADER_SIZE + (long) count * RECORD_SIZE);
+        out.writeLong(payloadLength);
+
+        // Payloads are written in record order, so neighbouring entities are paged in together.
+        int offset = 0;
+        for(int i = 0; i < count; i++) {
+            final int length = payloads.get(points.getEntityIndex(i)).length;
+            out.writeLong(points.getCell(i));
+            out.writeDouble(points.getLat(i));
+            out.writeDouble(points.getLon(i));
+            out.writeInt(offset);
+            out.writeInt(length);
+            offset += length;
+        }
+        for(int i = 0; i < count; i++) {
+            out.write(payloads.get(points.getEntityIndex(i)));
+        }
+        out.flush();
+    }
+
+}
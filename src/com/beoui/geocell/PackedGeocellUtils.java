@@ -0,0 +1,578 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.concurrent.ExecutorService;
+
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.MutableBoundingBox;
+import com.beoui.geocell.model.Point;
+
+/**
+ * Primitive counterpart of {@link GeocellUtils} working on geocells packed into a long.
+ *
+ * Layout of a packed cell (bit 63 is always 0):
+ * <pre>
+ *   bits 62..7  up to 14 geocell characters, 4 bits each, first character highest
+ *   bits  6..4  always 0
+ *   bits  3..0  resolution (number of characters)
+ * </pre>
+ * Digits below the resolution are always 0, so every geocell string has exactly one packed
+ * form. Because the characters are left-aligned and the resolution breaks ties, the natural
+ * (signed) ordering of packed cells is the lexicographic ordering of the geocell strings,
+ * i.e. Z-order. Sorting a long[] of cells with {@link java.util.Arrays#sort(long[])} therefore
+ * keeps every cell's descendants in one contiguous run right after it.
+ *
+ * None of the methods allocate, except for the explicit conversions to strings and
+ * {@link BoundingBox}es.
+ *
+ */
+public final class PackedGeocellUtils {
+
+    /**
+     * Maximum resolution that fits in the packed form.
+     */
+    public static final int MAX_RESOLUTION = 14;
+
+    /**
+     * Returned instead of a cell when there is no such cell (like null in {@link GeocellUtils}).
+     * Never a valid packed cell since it is negative.
+     */
+    public static final long NO_CELL = -1L;
+
+    private static final int RESOLUTION_MASK = 0xF;
+    private static final char[] GEOCELL_ALPHABET = "0123456789abcdef".toCharArray();
+
+    private PackedGeocellUtils() {
+        // no instantiation allowed
+    }
+
+    /**
+     * Computes the packed geocell containing the given point to the given resolution.
+     *
+     * @param lat latitude of the point
+     * @param lon longitude of the point
+     * @param resolution resolution of the cell to compute, between 0 and {@link #MAX_RESOLUTION}
+     * @return the packed geocell containing the point
+     */
+    public static long compute(double lat, double lon, int resolution) {
+        checkResolution(resolution);
+        final int max = (1 << (2 * resolution)) - 1;
+        final int x = toGrid((lon + 180.0) / 360.0, resolution, max);
+        final int y = toGrid((lat + 90.0) / 180.0, resolution, max);
+        return pack(x, y, resolution);
+    }
+
+    /**
+     * @see #compute(double, double, int)
+     */
+    public static long compute(Point point, int resolution) {
+        return compute(point.getLat(), point.getLon(), resolution);
+    }
+
+    /**
+     * Builds the packed cell at the given grid coordinates. At resolution r the grid has
+     * 4^r columns (x, west to east) and 4^r rows (y, south to north).
+     *
+     * @param x column of the cell
+     * @param y row of the cell
+     * @param resolution resolution of the cell
+     * @return the packed cell, or {@link #NO_CELL} if x or y is outside of the grid
+     */
+    public static long fromXY(int x, int y, int resolution) {
+        checkResolution(resolution);
+        final int max = (1 << (2 * resolution)) - 1;
+        if(x < 0 || x > max || y < 0 || y > max) {
+            return NO_CELL;
+        }
+        return pack(x, y, resolution);
+    }
+
+    /**
+     * @param cell a packed cell
+     * @return the resolution (number of characters) of the cell
+     */
+    public static int resolution(long cell) {
+        return (int) (cell & RESOLUTION_MASK);
+    }
+
+    /**
+     * @param cell a packed cell
+     * @return the column of the cell in the grid of its resolution, 0 being the westernmost
+     */
+    public static int x(long cell) {
+        return compact(morton(cell));
+    }
+
+    /**
+     * @param cell a packed cell
+     * @return the row of the cell in the grid of its resolution, 0 being the southernmost
+     */
+    public static int y(long cell) {
+        return compact(morton(cell) >>> 1);
+    }
+
+    /**
+     * @param cell a packed cell
+     * @param level index of the character, 0 being the first one
+     * @return the index in the geocell alphabet of the character at the given level
+     */
+    public static int digit(long cell, int level) {
+        return (int) (cell >>> (59 - 4 * level)) & 0xF;
+    }
+
+    /**
+     * Calculates the packed geocell adjacent to the given cell in the given direction.
+     * Wraps around the antimeridian, but not across the poles.
+     *
+     * @param cell a packed cell
+     * @param dx -1 for west, 1 for east, 0 otherwise
+     * @param dy -1 for south, 1 for north, 0 otherwise
+     * @return the adjacent cell, or {@link #NO_CELL} if there is no such cell
+     */
+    public static long adjacent(long cell, int dx, int dy) {
+        if(cell == NO_CELL) {
+            return NO_CELL;
+        }
+        final int resolution = resolution(cell);
+        final int max = (1 << (2 * resolution)) - 1;
+        final long m = morton(cell);
+        final int y = compact(m >>> 1) + dy;
+        if(y < 0 || y > max) {
+            return NO_CELL;
+        }
+        final int x = (compact(m) + dx) & max;
+        return pack(x, y, resolution);
+    }
+
+    /**
+     * @param cell a packed cell
+     * @param dir an (x, y) direction, as for {@link GeocellUtils#adjacent(String, int[])}
+     * @return the adjacent cell, or {@link #NO_CELL} if there is no such cell
+     */
+    public static long adjacent(long cell, int[] dir) {
+        return adjacent(cell, dir[0], dir[1]);
+    }
+
+    /**
+     * Computes the cells at Chebyshev distance exactly k from the given cell, clockwise from the
+     * Northwest corner: for k = 1, the same cells in the same order as
+     * {@link GeocellUtils#allAdjacents(String)}, without the missing ones. Offsets are computed
+     * from the cell's grid coordinates; columns wrap around the antimeridian and rows beyond the
+     * poles are left out. When the ring is wider than the grid, each cell is listed once, at its
+     * shortest distance around the antimeridian.
+     *
+     * @param cell a packed cell
+     * @param k the distance, 0 for the cell itself
+     * @param out the array receiving the cells, with room for at least {@link #ringCapacity(int)} cells
+     * @return the number of cells written to out
+     */
+    public static int ring(long cell, int k, long[] out) {
+        return ring(cell, k, out, 0);
+    }
+
+    /**
+     * @return a new array of the cells of {@link #ring(long, int, long[])}
+     */
+    public static long[] ring(long cell, int k) {
+        final long[] out = new long[ringCapacity(k)];
+        final int count = ring(cell, k, out, 0);
+        return truncate(out, count);
+    }
+
+    /**
+     * Computes the cells at Chebyshev distance at most k from the given cell, ring after ring
+     * (see {@link #ring(long, int, long[])}), so nearer cells come first.
+     *
+     * @param cell a packed cell
+     * @param k the maximum distance
+     * @param out the array receiving the cells, with room for at least {@link #diskCapacity(int)} cells
+     * @return the number of cells written to out
+     */
+    public static int disk(long cell, int k, long[] out) {
+        diskCapacity(k);
+        int count = 0;
+        for(int i = 0; i <= k; i++) {
+            count = ring(cell, i, out, count);
+        }
+        return count;
+    }
+
+    /**
+     * @return a new array of the cells of {@link #disk(long, int, long[])}
+     */
+    public static long[] disk(long cell, int k) {
+        final long[] out = new long[diskCapacity(k)];
+        final int count = disk(cell, k, out);
+        return truncate(out, count);
+    }
+
+    /**
+     * @return the maximum number of cells in a ring of distance k
+     */
+    public static int ringCapacity(int k) {
+        if(k < 0 || k > (Integer.MAX_VALUE >> 3)) {
+            throw new IllegalArgumentException("Invalid ring distance: " + k);
+        }
+        return k == 0 ? 1 : 8 * k;
+    }
+
+    /**
+     * @return the maximum number of cells in a disk of distance k
+     */
+    public static int diskCapacity(int k) {
+        final long side = 2L * k + 1;
+        if(k < 0 || side * side > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid disk distance: " + k);
+        }
+        return (int) (side * side);
+    }
+
+    // Writes the ring at out[offset...] and returns the new offset.
+    private static int ring(long cell, int k, long[] out, int offset) {
+        ringCapacity(k);
+        if(k == 0) {
+            out[offset] = cell;
+            return offset + 1;
+        }
+        final int resolution = resolution(cell);
+        final int max = (1 << (2 * resolution)) - 1;
+        final long m = morton(cell);
+        final int x = compact(m);
+        final int y = compact(m >>> 1);
+        // Only a ring wider than the grid can reach a column twice.
+        final boolean wraps = 2L * k + 1 > max + 1L;
+        final int start = offset;
+
+        // Top row west to east, right column north to south, bottom row east to west,
+        // left column south to north.
+        for(int side = 0; side < 4; side++) {
+            for(int step = 0; step < 2 * k; step++) {
+                final int dx;
+                final int dy;
+                switch(side) {
+                    case 0: dx = step - k; dy = k; break;
+                    case 1: dx = k; dy = k - step; break;
+                    case 2: dx = k - step; dy = -k; break;
+                    default: dx = -k; dy = step - k; break;
+                }
+                final long cy = (long) y + dy;
+                if(cy < 0 || cy > max) {
+                    continue;
+                }
+                final int cx = (int) ((x + (long) dx) & max);
+                if(wraps && !isNewRingCell(cx, (int) cy, x, y, k, max, out, start, offset)) {
+                    continue;
+                }
+                out[offset++] = pack(cx, (int) cy, resolution);
+            }
+        }
+        return offset;
+    }
+
+    // Whether the wrapped cell is at distance k around the antimeridian and not listed yet.
+    private static boolean isNewRingCell(int cx, int cy, int x, int y, int k, int max, long[] out, int from, int to) {
+        final int columns = (cx - x) & max;
+        final int distanceX = Math.min(columns, max + 1 - columns);
+        if(Math.max(distanceX, Math.abs(cy - y)) != k) {
+            return false;
+        }
+        for(int i = from; i < to; i++) {
+            if(compact(morton(out[i])) == cx && compact(morton(out[i]) >>> 1) == cy) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the number of cells {@link GeocellUtils#interpolate(String, String)} returns for
+     * the given cells, without building them: columns are counted eastwards from the Southwest
+     * cell (wrapping around the antimeridian), rows northwards (stopping at the pole).
+     *
+     * @param cellNE the Northeast packed cell
+     * @param cellSW the Southwest packed cell, of the same resolution
+     * @return the number of cells in the interpolation
+     */
+    public static int interpolationCount(long cellNE, long cellSW) {
+        final int resolution = resolution(cellNE);
+        if(resolution != resolution(cellSW)) {
+            throw new IllegalArgumentException("Cells must have the same resolution");
+        }
+        final int max = (1 << (2 * resolution)) - 1;
+        final int xNE = x(cellNE);
+        final int yNE = y(cellNE);
+        final int xSW = x(cellSW);
+        final int ySW = y(cellSW);
+        final long numCols = ((xNE - xSW) & max) + 1;
+        final long numRows = yNE >= ySW ? yNE - ySW + 1 : max + 1 - ySW;
+        return (int) Math.min(numCols * numRows, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param cell a packed cell
+     * @return the cell one resolution coarser containing the given cell, or {@link #NO_CELL}
+     *         for the resolution 0 cell
+     */
+    public static long parent(long cell) {
+        final int resolution = resolution(cell);
+        if(cell == NO_CELL || resolution == 0) {
+            return NO_CELL;
+        }
+        return parent(cell, resolution - 1);
+    }
+
+    /**
+     * @param cell a packed cell
+     * @param resolution resolution of the ancestor, at most the resolution of the cell
+     * @return the ancestor of the cell at the given resolution
+     */
+    public static long parent(long cell, int resolution) {
+        if(resolution > resolution(cell)) {
+            throw new IllegalArgumentException("Resolution " + resolution + " is finer than the cell's");
+        }
+        return (cell & ~((1L << (63 - 4 * resolution)) - 1)) | resolution;
+    }
+
+    /**
+     * @param cell a packed cell, coarser than {@link #MAX_RESOLUTION}
+     * @param index index in the geocell alphabet of the child's last character (0 to 15)
+     * @return the child cell
+     */
+    public static long child(long cell, int index) {
+        final int resolution = resolution(cell) + 1;
+        checkResolution(resolution);
+        return (cell & ~RESOLUTION_MASK) | ((long) (index & 0xF) << (63 - 4 * resolution)) | resolution;
+    }
+
+    /**
+     * @param ancestor a packed cell
+     * @param cell a packed cell
+     * @return whether cell is equal to or inside ancestor
+     */
+    public static boolean contains(long ancestor, long cell) {
+        final int resolution = resolution(ancestor);
+        return resolution <= resolution(cell) && parent(cell, resolution) == ancestor;
+    }
+
+    /**
+     * @param cell a packed cell
+     * @param lat latitude of the point
+     * @param lon longitude of the point
+     * @return whether or not the given cell contains the given point
+     */
+    public static boolean containsPoint(long cell, double lat, double lon) {
+        return compute(lat, lon, resolution(cell)) == cell;
+    }
+
+    /**
+     * Computes the bounding box of the given packed cell into the given holder.
+     *
+     * @param cell a packed cell
+     * @param box the holder to fill
+     * @return the holder
+     */
+    public static MutableBoundingBox computeBox(long cell, MutableBoundingBox box) {
+        final double cells = 1 << (2 * resolution(cell));
+        final long m = morton(cell);
+        final int x = compact(m);
+        final int y = compact(m >>> 1);
+        return box.set(-90.0 + 180.0 * (y + 1) / cells,
+                -180.0 + 360.0 * (x + 1) / cells,
+                -90.0 + 180.0 * y / cells,
+                -180.0 + 360.0 * x / cells);
+    }
+
+    /**
+     * @param cell a packed cell
+     * @return a new bounding box of the given packed cell
+     */
+    public static BoundingBox computeBox(long cell) {
+        return computeBox(cell, new MutableBoundingBox()).toBoundingBox();
+    }
+
+    /**
+     * @param cell a geocell string of at most {@link #MAX_RESOLUTION} characters
+     * @return the packed form of the cell
+     * @throws IllegalArgumentException if the string is not a valid geocell or is too long
+     */
+    public static long fromString(String cell) {
+        final int resolution = cell.length();
+        checkResolution(resolution);
+        long packed = resolution;
+        for(int i = 0; i < resolution; i++) {
+            final int d = charIndex(cell.charAt(i));
+            if(d < 0) {
+                throw new IllegalArgumentException("Invalid geocell: " + cell);
+            }
+            packed |= (long) d << (59 - 4 * i);
+        }
+        return packed;
+    }
+
+    /**
+     * @param cell a packed cell
+     * @return the geocell string of the cell
+     */
+    public static String toString(long cell) {
+        final char[] chars = new char[resolution(cell)];
+        return new String(chars, 0, toChars(cell, chars, 0));
+    }
+
+    /**
+     * Writes the characters of the given packed cell into a buffer.
+     *
+     * @param cell a packed cell
+     * @param buffer the buffer to write into
+     * @param offset position of the first character in the buffer
+     * @return the number of characters written (the cell's resolution)
+     */
+    public static int toChars(long cell, char[] buffer, int offset) {
+        final int resolution = resolution(cell);
+        for(int i = 0; i < resolution; i++) {
+            buffer[offset + i] = GEOCELL_ALPHABET[digit(cell, i)];
+        }
+        return resolution;
+    }
+
+    /**
+     * Computes the packed geocells of a whole column of points in one call.
+     *
+     * @param lats latitudes of the points
+     * @param lons longitudes of the points, same length as lats
+     * @param resolution resolution of the cells to compute
+     * @param cells array receiving the cell of point i at index i
+     */
+    public static void computeAll(double[] lats, double[] lons, int resolution, long[] cells) {
+        checkBatch(lats, lons, resolution, cells.length);
+        computeRange(lats, lons, resolution, cells, null, 0, lats.length);
+    }
+
+    /**
+     * Same as {@link #computeAll(double[], double[], int, long[])}, but splits the work across
+     * the threads of the given executor and the calling thread.
+     *
+     * @param executor the executor to run the computation in
+     */
+    public static void computeAll(double[] lats, double[] lons, int resolution, long[] cells, ExecutorService executor) {
+        checkBatch(lats, lons, resolution, cells.length);
+        computeAll(lats, lons, resolution, cells, null, executor);
+    }
+
+    static void checkBatch(double[] lats, double[] lons, int resolution, int outLength) {
+        checkResolution(resolution);
+        if(lats.length != lons.length) {
+            throw new IllegalArgumentException("lats and lons must have the same length");
+        }
+        if(outLength < lats.length) {
+            throw new IllegalArgumentException("Output array is too small: " + outLength + " < " + lats.length);
+        }
+    }
+
+    /**
+     * Computes the cells of points [from, to) into cells and, if not null, their strings
+     * into strings.
+     */
+    static void computeRange(double[] lats, double[] lons, int resolution, long[] cells, String[] strings, int from, int to) {
+        final int max = (1 << (2 * resolution)) - 1;
+        final char[] buffer = strings == null ? null : new char[resolution];
+        for(int i = from; i < to; i++) {
+            final int x = toGrid((lons[i] + 180.0) / 360.0, resolution, max);
+            final int y = toGrid((lats[i] + 90.0) / 180.0, resolution, max);
+            final long cell = pack(x, y, resolution);
+            if(cells != null) {
+                cells[i] = cell;
+            }
+            if(strings != null) {
+                strings[i] = new String(buffer, 0, toChars(cell, buffer, 0));
+            }
+        }
+    }
+
+    // Points per chunk handed to another thread, enough to amortise the hand-off.
+    private static final int MIN_CHUNK = 4096;
+
+    static void computeAll(final double[] lats, final double[] lons, final int resolution, final long[] cells,
+            final String[] strings, ExecutorService executor) {
+        ParallelRanges.run(executor, lats.length, MIN_CHUNK, new ParallelRanges.Range() {
+            public void run(int from, int to) {
+                computeRange(lats, lons, resolution, cells, strings, from, to);
+            }
+        });
+    }
+
+    // Arrays.copyOf needs Android API level 9.
+    private static long[] truncate(long[] cells, int count) {
+        if(count == cells.length) {
+            return cells;
+        }
+        final long[] result = new long[count];
+        System.arraycopy(cells, 0, result, 0, count);
+        return result;
+    }
+
+    private static void checkResolution(int resolution) {
+        if(resolution < 0 || resolution > MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Resolution must be between 0 and " + MAX_RESOLUTION + ": " + resolution);
+        }
+    }
+
+    private static int charIndex(char c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static int toGrid(double fraction, int resolution, int max) {
+        final double scaled = fraction * (1 << (2 * resolution));
+        if(!(scaled > 0)) {
+            return 0;
+        }
+        return scaled >= max ? max : (int) scaled;
+    }
+
+    static long pack(int x, int y, int resolution) {
+        return ((spread(x) | (spread(y) << 1)) << (63 - 4 * resolution)) | resolution;
+    }
+
+    private static long morton(long cell) {
+        return cell >>> (63 - 4 * resolution(cell));
+    }
+
+    // Interleaves the bits of v with zeros: geocell characters are y1 x1 y0 x0 nibbles.
+    private static long spread(int v) {
+        long x = v & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    private static int compact(long v) {
+        long x = v & 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+
+}
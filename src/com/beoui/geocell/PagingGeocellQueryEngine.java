@@ -0,0 +1,127 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.beoui.geocell.model.GeocellQuery;
+
+/**
+ * StreamingGeocellQueryEngine adapter for plain engines, querying the underlying engine a
+ * page of cells at a time as the results are pulled.
+ *
+ * Each page is a separate query of the underlying engine, so small pages stop sooner but cost
+ * more round trips.
+ *
+ */
+public class PagingGeocellQueryEngine implements StreamingGeocellQueryEngine {
+
+    public static final int DEFAULT_CELLS_PER_PAGE = 4;
+
+    private final GeocellQueryEngine delegate;
+    private final int cellsPerPage;
+
+    /**
+     * @param delegate the engine queried for each page
+     * @param cellsPerPage the number of cells fetched by each query of the underlying engine
+     */
+    public PagingGeocellQueryEngine(GeocellQueryEngine delegate, int cellsPerPage) {
+        if(cellsPerPage < 1) {
+            throw new IllegalArgumentException("Invalid page size: " + cellsPerPage);
+        }
+        this.delegate = delegate;
+        this.cellsPerPage = cellsPerPage;
+    }
+
+    /**
+     * @return the engine itself if it streams, or an adapter fetching DEFAULT_CELLS_PER_PAGE cells at a time
+     */
+    public static StreamingGeocellQueryEngine wrap(GeocellQueryEngine engine) {
+        if(engine instanceof StreamingGeocellQueryEngine) {
+            return (StreamingGeocellQueryEngine) engine;
+        }
+        return new PagingGeocellQueryEngine(engine, DEFAULT_CELLS_PER_PAGE);
+    }
+
+    public <T> List<T> query(GeocellQuery baseQuery, List<String> curGeocellsUnique, Class<T> entityClass) {
+        return delegate.query(baseQuery, curGeocellsUnique, entityClass);
+    }
+
+    public <T> GeocellResultIterator<T> queryIterator(GeocellQuery baseQuery, List<String> curGeocellsUnique,
+            Class<T> entityClass) {
+        return new PageIterator<T>(baseQuery, new ArrayList<String>(curGeocellsUnique), entityClass);
+    }
+
+    private final class PageIterator<T> implements GeocellResultIterator<T> {
+
+        private final GeocellQuery baseQuery;
+        private final List<String> cells;
+        private final Class<T> entityClass;
+        private int pageStart;
+        private int nextCell;
+        private List<T> page;
+        private int position;
+        private volatile boolean cancelled;
+
+        PageIterator(GeocellQuery baseQuery, List<String> cells, Class<T> entityClass) {
+            this.baseQuery = baseQuery;
+            this.cells = cells;
+            this.entityClass = entityClass;
+        }
+
+        public boolean hasNext() {
+            while(true) {
+                if(cancelled) {
+                    nextCell = completedCells();
+                    page = null;
+                    return false;
+                }
+                if(page != null && position < page.size()) {
+                    return true;
+                }
+                if(nextCell == cells.size()) {
+                    return false;
+                }
+                final int end = Math.min(cells.size(), nextCell + cellsPerPage);
+                page = delegate.query(baseQuery, cells.subList(nextCell, end), entityClass);
+                position = 0;
+                pageStart = nextCell;
+                nextCell = end;
+            }
+        }
+
+        public T next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(position++);
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public int completedCells() {
+            return page == null || position == page.size() ? nextCell : pageStart;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
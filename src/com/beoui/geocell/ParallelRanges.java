@@ -0,0 +1,92 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a range of indexes into chunks run on an ExecutorService, the calling thread taking
+ * the last chunk. Plain executors rather than fork/join pools keep the parallel overloads
+ * available on every Android API level.
+ *
+ */
+final class ParallelRanges {
+
+    /**
+     * Work on a sub-range of indexes.
+     */
+    interface Range {
+
+        void run(int from, int to);
+
+    }
+
+    // Chunks per available processor, to even out chunks of unequal cost.
+    private static final int CHUNKS_PER_PROCESSOR = 4;
+
+    private ParallelRanges() {
+    }
+
+    /**
+     * Runs range over [0, count) and waits for all of it. Failures are rethrown unwrapped.
+     *
+     * @param minChunk the smallest chunk worth handing to another thread
+     */
+    static void run(ExecutorService executor, int count, int minChunk, final Range range) {
+        final int chunks = (int) Math.min((count + (long) minChunk - 1) / minChunk,
+                CHUNKS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+        if(chunks <= 1) {
+            range.run(0, count);
+            return;
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>(chunks - 1);
+        try {
+            for(int i = 0; i < chunks - 1; i++) {
+                final int from = (int) ((long) count * i / chunks);
+                final int to = (int) ((long) count * (i + 1) / chunks);
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        range.run(from, to);
+                    }
+                }));
+            }
+            range.run((int) ((long) count * (chunks - 1) / chunks), count);
+            for(Future<?> future : futures) {
+                future.get();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the other threads", e);
+        } catch(ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            // No-op for completed chunks; stops the others after a failure.
+            for(Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+}
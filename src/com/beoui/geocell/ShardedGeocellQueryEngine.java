@@ -0,0 +1,281 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.beoui.geocell.model.GeocellQuery;
+
+/**
+ * GeocellQueryEngine routing each cell to one of several underlying engines (e.g. one per
+ * datastore namespace) by the prefix of the cell, querying the shards concurrently and
+ * merging their results.
+ *
+ * Every cell with the same prefix of the sharding depth lives on the same shard, so a
+ * spatially local query usually touches a single shard. Cells coarser than the depth are sent
+ * to every shard owning one of their descendant prefixes.
+ *
+ * Prefixes are assigned to the shards by rendezvous hashing of the shard names: adding or
+ * removing a shard only moves the prefixes gained or lost by that shard, and the assignment
+ * doesn't depend on the order of the shards.
+ *
+ * A prefix growing too large for its shard is split rather than the depth increased: the 16
+ * children of a split prefix are assigned on their own (and may be split again), while every
+ * other prefix keeps its shard, so only the entities under the split prefixes move. Changing
+ * the depth itself reassigns most prefixes and means moving nearly all the data.
+ * Writers must store each entity on {@link #shardFor(String)} its geocell, using an engine
+ * with the same names, depth and split prefixes.
+ *
+ */
+public class ShardedGeocellQueryEngine implements GeocellQueryEngine {
+
+    // Coarse cells are routed by their descendant prefixes up to this many levels above the
+    // depth (16^3 prefixes), and to every shard above.
+    private static final int MAX_FAN_OUT_LEVELS = 3;
+
+    private final String[] names;
+    private final GeocellQueryEngine[] shards;
+    private final long[] nameHashes;
+    private final int depth;
+    private final Set<String> splitPrefixes;
+    private final ExecutorService executor;
+
+    /**
+     * @param shards the underlying engines by shard name, in the order their results are merged
+     * @param depth the length of the prefixes assigned to the shards
+     * @param executor the executor running the shard queries, or null to run them one after the
+     * other on the calling thread
+     */
+    public ShardedGeocellQueryEngine(Map<String, ? extends GeocellQueryEngine> shards, int depth, ExecutorService executor) {
+        this(shards, depth, Collections.<String>emptySet(), executor);
+    }
+
+    /**
+     * @param shards the underlying engines by shard name, in the order their results are merged
+     * @param depth the length of the prefixes assigned to the shards
+     * @param splitPrefixes the prefixes whose children are assigned on their own; each is at
+     * least as long as the depth, and its parent is split too unless it has the depth
+     * @param executor the executor running the shard queries, or null to run them one after the
+     * other on the calling thread
+     */
+    public ShardedGeocellQueryEngine(Map<String, ? extends GeocellQueryEngine> shards, int depth, Set<String> splitPrefixes, ExecutorService executor) {
+        if(shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        if(depth < 1) {
+            throw new IllegalArgumentException("Invalid depth: " + depth);
+        }
+        this.names = new String[shards.size()];
+        this.shards = new GeocellQueryEngine[shards.size()];
+        this.nameHashes = new long[shards.size()];
+        int i = 0;
+        for(Map.Entry<String, ? extends GeocellQueryEngine> shard : shards.entrySet()) {
+            names[i] = shard.getKey();
+            this.shards[i] = shard.getValue();
+            nameHashes[i] = hash(shard.getKey());
+            i++;
+        }
+        for(String prefix : splitPrefixes) {
+            if(prefix.length() < depth || !GeocellUtils.isValid(prefix)) {
+                throw new IllegalArgumentException("Invalid split prefix: " + prefix);
+            }
+            if(prefix.length() > depth && !splitPrefixes.contains(prefix.substring(0, prefix.length() - 1))) {
+                throw new IllegalArgumentException("The parent of split prefix " + prefix + " isn't split");
+            }
+        }
+        this.depth = depth;
+        this.splitPrefixes = new HashSet<String>(splitPrefixes);
+        this.executor = executor;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public Set<String> getSplitPrefixes() {
+        return Collections.unmodifiableSet(splitPrefixes);
+    }
+
+    /**
+     * @param geocell a geocell of at least the sharding depth, finer than the split prefixes
+     * containing it
+     * @return the name of the shard storing the geocell
+     */
+    public String shardFor(String geocell) {
+        if(geocell.length() < depth) {
+            throw new IllegalArgumentException("Geocell " + geocell + " is coarser than the sharding depth " + depth);
+        }
+        final String prefix = assignedPrefix(geocell);
+        if(splitPrefixes.contains(prefix)) {
+            throw new IllegalArgumentException("Geocell " + geocell + " is a split prefix");
+        }
+        return names[shardIndex(prefix)];
+    }
+
+    public <T> List<T> query(final GeocellQuery baseQuery, List<String> curGeocellsUnique, final Class<T> entityClass) {
+        final Map<Integer, List<String>> cellsByShard = route(curGeocellsUnique);
+        if(cellsByShard.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        if(executor == null || cellsByShard.size() == 1) {
+            final List<T> result = new ArrayList<T>();
+            for(Map.Entry<Integer, List<String>> entry : cellsByShard.entrySet()) {
+                result.addAll(shards[entry.getKey()].query(baseQuery, entry.getValue(), entityClass));
+            }
+            return result;
+        }
+
+        final List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(cellsByShard.size());
+        try {
+            for(Map.Entry<Integer, List<String>> entry : cellsByShard.entrySet()) {
+                final GeocellQueryEngine shard = shards[entry.getKey()];
+                final List<String> cells = entry.getValue();
+                futures.add(executor.submit(new Callable<List<T>>() {
+                    public List<T> call() {
+                        return shard.query(baseQuery, cells, entityClass);
+                    }
+                }));
+            }
+            final List<T> result = new ArrayList<T>();
+            for(Future<List<T>> future : futures) {
+                result.addAll(future.get());
+            }
+            return result;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying the shards", e);
+        } catch(ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            // No-op for completed queries; stops the others after a failure.
+            for(Future<List<T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // Groups the cells by shard index, in shard order.
+    private Map<Integer, List<String>> route(List<String> cells) {
+        final List<List<String>> byShard = new ArrayList<List<String>>(Collections.<List<String>>nCopies(shards.length, null));
+        final boolean[] owners = new boolean[shards.length];
+        for(String cell : cells) {
+            final String prefix = cell.length() >= depth ? assignedPrefix(cell) : null;
+            if(prefix != null && !splitPrefixes.contains(prefix)) {
+                addCell(byShard, shardIndex(prefix), cell);
+            } else if(depth - cell.length() > MAX_FAN_OUT_LEVELS) {
+                for(int i = 0; i < shards.length; i++) {
+                    addCell(byShard, i, cell);
+                }
+            } else {
+                markOwners(cell, owners);
+                for(int i = 0; i < shards.length; i++) {
+                    if(owners[i]) {
+                        addCell(byShard, i, cell);
+                        owners[i] = false;
+                    }
+                }
+            }
+        }
+        final Map<Integer, List<String>> result = new LinkedHashMap<Integer, List<String>>();
+        for(int i = 0; i < shards.length; i++) {
+            if(byShard.get(i) != null) {
+                result.put(i, byShard.get(i));
+            }
+        }
+        return result;
+    }
+
+    private static void addCell(List<List<String>> byShard, int shard, String cell) {
+        List<String> cells = byShard.get(shard);
+        if(cells == null) {
+            cells = new ArrayList<String>();
+            byShard.set(shard, cells);
+        }
+        cells.add(cell);
+    }
+
+    // The prefix of the geocell its shard is assigned by: the depth prefix, extended one
+    // character at a time while the prefix is split. The geocell itself if it is split.
+    private String assignedPrefix(String geocell) {
+        int length = depth;
+        while(length < geocell.length() && splitPrefixes.contains(geocell.substring(0, length))) {
+            length++;
+        }
+        return geocell.substring(0, length);
+    }
+
+    // Marks the shards of every assigned prefix under the prefix.
+    private void markOwners(String prefix, boolean[] owners) {
+        if(prefix.length() >= depth && !splitPrefixes.contains(prefix)) {
+            owners[shardIndex(prefix)] = true;
+            return;
+        }
+        for(int i = 0; i < 16; i++) {
+            markOwners(prefix + Character.forDigit(i, 16), owners);
+        }
+    }
+
+    // Rendezvous hashing: the shard with the highest weight for the prefix wins.
+    private int shardIndex(String prefix) {
+        final long prefixHash = hash(prefix);
+        int best = 0;
+        long bestWeight = Long.MIN_VALUE;
+        for(int i = 0; i < shards.length; i++) {
+            final long weight = mix(nameHashes[i] ^ prefixHash);
+            if(weight > bestWeight) {
+                best = i;
+                bestWeight = weight;
+            }
+        }
+        return best;
+    }
+
+    // 64 bit FNV-1a, stable across JVMs unlike identity hashes.
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Final mixing step of MurmurHash3.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
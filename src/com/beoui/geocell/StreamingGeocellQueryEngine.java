@@ -0,0 +1,37 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell;
+
+import java.util.List;
+
+import com.beoui.geocell.model.GeocellQuery;
+
+/**
+ * GeocellQueryEngine that can also return its results incrementally, in the order of the
+ * requested cells, fetching the far cells of wide covers only if they are pulled.
+ *
+ * Plain engines can be streamed with {@link PagingGeocellQueryEngine}.
+ *
+ */
+public interface StreamingGeocellQueryEngine extends GeocellQueryEngine {
+
+    /**
+     * Same as {@link #query(GeocellQuery, List, Class)}, returning the entities as they are fetched.
+     *
+     * @return an iterator over the entities of the cells, to be cancelled when abandoned early
+     */
+    public abstract <T> GeocellResultIterator<T> queryIterator(GeocellQuery baseQuery, List<String> curGeocellsUnique,
+            Class<T> entityClass);
+
+}
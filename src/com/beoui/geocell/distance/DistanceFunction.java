@@ -0,0 +1,37 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.distance;
+
+/**
+ * Great circle distance between two points on the sphere of radius GeocellUtils.RADIUS.
+ *
+ * To compare one point (e.g. a query center) with many others, prepare it first: the
+ * prepared point caches everything that only depends on its own coordinates.
+ *
+ */
+public interface DistanceFunction {
+
+    /**
+     * @return the distance between the two points, in meters
+     */
+    double distance(double lat1, double lon1, double lat2, double lon2);
+
+    /**
+     * @param lat latitude of the point
+     * @param lon longitude of the point
+     * @return the point, ready to be compared with many others
+     */
+    PreparedPoint prepare(double lat, double lon);
+
+}
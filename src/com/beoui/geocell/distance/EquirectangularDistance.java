@@ -0,0 +1,62 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.distance;
+
+import com.beoui.geocell.GeocellUtils;
+
+/**
+ * Equirectangular approximation: Pythagoras on longitudes scaled by the cosine of the mean
+ * latitude. One cosine and one square root per distance.
+ *
+ * Error bound, relative to the exact great circle distance: below 0.01% for points less than
+ * 100 km apart and below 1% up to 1000 km, both between 70 degrees South and North. The error
+ * grows towards the poles (0.04% at 100 km up to 80 degrees) and the approximation must not be
+ * used for points on both sides of a pole. Good for filtering and sorting nearby candidates.
+ *
+ */
+public class EquirectangularDistance implements DistanceFunction {
+
+    public double distance(double lat1, double lon1, double lat2, double lon2) {
+        return prepare(lat1, lon1).distanceTo(lat2, lon2);
+    }
+
+    public PreparedPoint prepare(final double lat, final double lon) {
+        final double latRad = Math.toRadians(lat);
+        final double lonRad = Math.toRadians(lon);
+        return new PreparedPoint() {
+            public double getLat() {
+                return lat;
+            }
+
+            public double getLon() {
+                return lon;
+            }
+
+            public double distanceTo(double lat2, double lon2) {
+                final double lat2Rad = Math.toRadians(lat2);
+                double dLon = Math.toRadians(lon2) - lonRad;
+                // Shortest way around the antimeridian.
+                if(dLon > Math.PI) {
+                    dLon -= 2 * Math.PI;
+                } else if(dLon < -Math.PI) {
+                    dLon += 2 * Math.PI;
+                }
+                final double x = dLon * Math.cos((latRad + lat2Rad) / 2);
+                final double y = lat2Rad - latRad;
+                return GeocellUtils.RADIUS * Math.sqrt(x * x + y * y);
+            }
+        };
+    }
+
+}
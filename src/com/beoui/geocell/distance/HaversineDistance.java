@@ -0,0 +1,52 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.distance;
+
+import com.beoui.geocell.GeocellUtils;
+
+/**
+ * Haversine formula: exact on the sphere and well conditioned at any distance, down to
+ * millimeters, at the cost of an asin and a square root.
+ *
+ */
+public class HaversineDistance implements DistanceFunction {
+
+    public double distance(double lat1, double lon1, double lat2, double lon2) {
+        return prepare(lat1, lon1).distanceTo(lat2, lon2);
+    }
+
+    public PreparedPoint prepare(final double lat, final double lon) {
+        final double latRad = Math.toRadians(lat);
+        final double cosLat = Math.cos(latRad);
+        final double lonRad = Math.toRadians(lon);
+        return new PreparedPoint() {
+            public double getLat() {
+                return lat;
+            }
+
+            public double getLon() {
+                return lon;
+            }
+
+            public double distanceTo(double lat2, double lon2) {
+                final double lat2Rad = Math.toRadians(lat2);
+                final double sinDLat = Math.sin((lat2Rad - latRad) / 2);
+                final double sinDLon = Math.sin((Math.toRadians(lon2) - lonRad) / 2);
+                final double a = sinDLat * sinDLat + cosLat * Math.cos(lat2Rad) * sinDLon * sinDLon;
+                return 2 * GeocellUtils.RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+            }
+        };
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.distance;
+
+import com.beoui.geocell.GeocellUtils;
+
+/**
+ * Spherical law of cosines, as used by {@link GeocellUtils#distance(double, double, double, double)}.
+ * Exact on the sphere, but loses precision below a few meters because of acos.
+ *
+ */
+public class LawOfCosinesDistance implements DistanceFunction {
+
+    public double distance(double lat1, double lon1, double lat2, double lon2) {
+        return GeocellUtils.distance(lat1, lon1, lat2, lon2);
+    }
+
+    public PreparedPoint prepare(final double lat, final double lon) {
+        final double sinLat = Math.sin(Math.toRadians(lat));
+        final double cosLat = Math.cos(Math.toRadians(lat));
+        final double lonRad = Math.toRadians(lon);
+        return new PreparedPoint() {
+            public double getLat() {
+                return lat;
+            }
+
+            public double getLon() {
+                return lon;
+            }
+
+            public double distanceTo(double lat2, double lon2) {
+                final double lat2Rad = Math.toRadians(lat2);
+                return GeocellUtils.RADIUS
+                        * Math.acos(GeocellUtils.makeDoubleInRange(sinLat * Math.sin(lat2Rad)
+                                + cosLat * Math.cos(lat2Rad) * Math.cos(Math.toRadians(lon2) - lonRad)));
+            }
+        };
+    }
+
+}
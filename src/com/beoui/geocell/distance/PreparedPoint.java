@@ -0,0 +1,31 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.distance;
+
+/**
+ * A point prepared by a {@link DistanceFunction}. Immutable, so it can be shared between threads.
+ *
+ */
+public interface PreparedPoint {
+
+    double getLat();
+
+    double getLon();
+
+    /**
+     * @return the distance between this point and the given one, in meters
+     */
+    double distanceTo(double lat, double lon);
+
+}
@@ -0,0 +1,296 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.beoui.geocell.GeocellQueryEngine;
+import com.beoui.geocell.GeocellUtils;
+import com.beoui.geocell.PackedGeocellUtils;
+
+/**
+ * Cost function learning from the queries actually executed, instead of the fixed threshold of
+ * {@link DefaultCostFunction}. The cost of a search, in milliseconds, is modelled as
+ * <pre>
+ *   numCells * perQueryCost + expectedEntities(numCells, resolution) * perEntityCost
+ * </pre>
+ * perQueryCost and perEntityCost are fitted online by least squares on the observed query
+ * times, giving more weight to recent queries. The expected number of entities comes from the
+ * observed entity density, tracked per area of about 10km x 5km (resolution 6 cells) so that
+ * dense city centres and rural areas get different resolutions: use
+ * {@link #forBoundingBox(BoundingBox)} to price a search with the density of its area.
+ *
+ * Observations are fed by the engine returned by {@link #instrument(GeocellQueryEngine)} or
+ * by {@link #record(List, int, long)}, and can be kept between sessions with
+ * {@link #store(OutputStream)} and {@link #load(InputStream)}. Thread safe.
+ *
+ */
+public class AdaptiveCostFunction implements CostFunction {
+
+    /**
+     * Resolution of the areas whose density is tracked.
+     */
+    public static final int DENSITY_RESOLUTION = 6;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final double DEFAULT_PER_QUERY_COST = 50;
+    private static final double DEFAULT_PER_ENTITY_COST = 0.5;
+    private static final double DEFAULT_DENSITY = 100;
+    private static final int DEFAULT_MAX_AREAS = 4096;
+    // Weight of the previous observations at each new one.
+    private static final double DECAY = 0.99;
+    // Weight pulling the fit towards the initial costs, so that a few observations can't give absurd costs.
+    private static final double PRIOR_WEIGHT = 1;
+    private static final double AREA_DENSITY_SMOOTHING = 0.3;
+    private static final double GLOBAL_DENSITY_SMOOTHING = 0.05;
+
+    private final int maxCells;
+    private final double priorQueryCost;
+    private final double priorEntityCost;
+    private final Map<Long, Double> areaDensities;
+
+    // Decayed sums of the normal equations: c = cells, e = entities, t = time.
+    private double sumCC;
+    private double sumCE;
+    private double sumEE;
+    private double sumCT;
+    private double sumET;
+    private double perQueryCost;
+    private double perEntityCost;
+    // Entities per DENSITY_RESOLUTION cell, over all areas.
+    private double globalDensity;
+
+    /**
+     * Cost function allowing 16 cells per search, like DefaultCostFunction.
+     */
+    public AdaptiveCostFunction() {
+        this(GeocellUtils.GEOCELL_GRID_SIZE * GeocellUtils.GEOCELL_GRID_SIZE, DEFAULT_PER_QUERY_COST,
+                DEFAULT_PER_ENTITY_COST, DEFAULT_DENSITY);
+    }
+
+    /**
+     * @param maxCells maximum number of cells per search, e.g. the IN query limit of the backend
+     * @param perQueryCost initial cost of a cell in milliseconds
+     * @param perEntityCost initial cost of a fetched entity in milliseconds
+     * @param density initial number of entities per resolution 6 cell
+     */
+    public AdaptiveCostFunction(int maxCells, double perQueryCost, double perEntityCost, double density) {
+        this.maxCells = maxCells;
+        this.priorQueryCost = perQueryCost;
+        this.priorEntityCost = perEntityCost;
+        this.perQueryCost = perQueryCost;
+        this.perEntityCost = perEntityCost;
+        this.globalDensity = density;
+        this.areaDensities = new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+                return size() > DEFAULT_MAX_AREAS;
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.beoui.geocell.model.CostFunction#defaultCostFunction(int, int)
+     */
+    public double defaultCostFunction(int numCells, int resolution) {
+        final double density;
+        synchronized(this) {
+            density = globalDensity;
+        }
+        return cost(numCells, resolution, density);
+    }
+
+    /**
+     * @param bbox the box about to be searched
+     * @return a cost function using the entity density observed around the center of the box
+     */
+    public CostFunction forBoundingBox(BoundingBox bbox) {
+        double lon = (bbox.getEast() + bbox.getWest()) / 2;
+        if(bbox.getEast() < bbox.getWest()) {
+            lon = lon > 0 ? lon - 180 : lon + 180;
+        }
+        final long area = PackedGeocellUtils.compute((bbox.getNorth() + bbox.getSouth()) / 2, lon, DENSITY_RESOLUTION);
+        final double density;
+        synchronized(this) {
+            final Double areaDensity = areaDensities.get(area);
+            density = areaDensity != null ? areaDensity : globalDensity;
+        }
+        return new CostFunction() {
+            public double defaultCostFunction(int numCells, int resolution) {
+                return cost(numCells, resolution, density);
+            }
+        };
+    }
+
+    private double cost(int numCells, int resolution, double density) {
+        if(numCells > maxCells) {
+            return Double.MAX_VALUE;
+        }
+        final double expectedEntities = numCells * density * Math.pow(16, DENSITY_RESOLUTION - resolution);
+        synchronized(this) {
+            return numCells * perQueryCost + expectedEntities * perEntityCost;
+        }
+    }
+
+    /**
+     * Records an executed search.
+     *
+     * @param cells the geocells searched
+     * @param entities the number of entities returned
+     * @param elapsedNanos the duration of the search
+     */
+    public void record(List<String> cells, int entities, long elapsedNanos) {
+        if(cells.isEmpty()) {
+            return;
+        }
+        // Area searched, in DENSITY_RESOLUTION cells.
+        double area = 0;
+        for(final String cell : cells) {
+            area += Math.pow(16, DENSITY_RESOLUTION - cell.length());
+        }
+        final double density = entities / area;
+        final double numCells = cells.size();
+        final double millis = elapsedNanos / 1e6;
+
+        synchronized(this) {
+            sumCC = DECAY * sumCC + numCells * numCells;
+            sumCE = DECAY * sumCE + numCells * entities;
+            sumEE = DECAY * sumEE + (double) entities * entities;
+            sumCT = DECAY * sumCT + numCells * millis;
+            sumET = DECAY * sumET + entities * millis;
+            solve();
+
+            globalDensity += GLOBAL_DENSITY_SMOOTHING * (density - globalDensity);
+            for(final String cell : cells) {
+                if(cell.length() >= DENSITY_RESOLUTION) {
+                    final Long key = PackedGeocellUtils.fromString(cell.substring(0, DENSITY_RESOLUTION));
+                    final Double previous = areaDensities.get(key);
+                    areaDensities.put(key, previous == null ? density
+                            : previous + AREA_DENSITY_SMOOTHING * (density - previous));
+                }
+            }
+        }
+    }
+
+    // Solves the 2x2 normal equations, regularized towards the initial costs.
+    private void solve() {
+        final double a11 = sumCC + PRIOR_WEIGHT;
+        final double a12 = sumCE;
+        final double a22 = sumEE + PRIOR_WEIGHT;
+        final double b1 = sumCT + PRIOR_WEIGHT * priorQueryCost;
+        final double b2 = sumET + PRIOR_WEIGHT * priorEntityCost;
+        final double det = a11 * a22 - a12 * a12;
+        if(det <= 0) {
+            return;
+        }
+        perQueryCost = Math.max(0, (a22 * b1 - a12 * b2) / det);
+        perEntityCost = Math.max(0, (a11 * b2 - a12 * b1) / det);
+    }
+
+    public synchronized double getPerQueryCost() {
+        return perQueryCost;
+    }
+
+    public synchronized double getPerEntityCost() {
+        return perEntityCost;
+    }
+
+    /**
+     * Wraps a query engine so that every query it runs is recorded.
+     *
+     * @param engine the engine to measure
+     * @return the measuring engine
+     */
+    public GeocellQueryEngine instrument(final GeocellQueryEngine engine) {
+        return new GeocellQueryEngine() {
+            public <T> List<T> query(GeocellQuery baseQuery, List<String> curGeocellsUnique, Class<T> entityClass) {
+                final long start = System.nanoTime();
+                final List<T> result = engine.query(baseQuery, curGeocellsUnique, entityClass);
+                record(curGeocellsUnique, result.size(), System.nanoTime() - start);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Writes the learned state. The stream is flushed but not closed.
+     */
+    public void store(OutputStream stream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(stream);
+        synchronized(this) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeDouble(sumCC);
+            out.writeDouble(sumCE);
+            out.writeDouble(sumEE);
+            out.writeDouble(sumCT);
+            out.writeDouble(sumET);
+            out.writeDouble(globalDensity);
+            out.writeInt(areaDensities.size());
+            for(final Map.Entry<Long, Double> entry : areaDensities.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeDouble(entry.getValue());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Replaces the learned state with one written by {@link #store(OutputStream)}.
+     * The stream is not closed.
+     *
+     * @throws IOException if the stream can't be read or doesn't hold a stored state
+     */
+    public void load(InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(stream);
+        final int version = in.readInt();
+        if(version != FORMAT_VERSION) {
+            throw new IOException("Unsupported cost function state version: " + version);
+        }
+        final double cc = in.readDouble();
+        final double ce = in.readDouble();
+        final double ee = in.readDouble();
+        final double ct = in.readDouble();
+        final double et = in.readDouble();
+        final double density = in.readDouble();
+        final int areas = in.readInt();
+        final Map<Long, Double> densities = new LinkedHashMap<Long, Double>();
+        for(int i = 0; i < areas; i++) {
+            final long area = in.readLong();
+            densities.put(area, in.readDouble());
+        }
+
+        synchronized(this) {
+            sumCC = cc;
+            sumCE = ce;
+            sumEE = ee;
+            sumCT = ct;
+            sumET = et;
+            solve();
+            globalDensity = density;
+            areaDensities.clear();
+            areaDensities.putAll(densities);
+        }
+    }
+
+}
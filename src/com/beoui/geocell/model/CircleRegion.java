@@ -0,0 +1,59 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+*/
+
+package com.beoui.geocell.model;
+
+import com.beoui.geocell.GeocellUtils;
+
+/**
+ * All points within a given great circle distance of a center.
+ *
+ */
+public class CircleRegion implements GeocellRegion {
+
+    private Point center;
+    private double radius;
+
+    /**
+     * @param center the center of the circle
+     * @param radius the radius in meters
+     */
+    public CircleRegion(Point center, double radius) {
+        this.center = center;
+        this.radius = radius;
+    }
+
+    public Point getCenter() {
+        return center;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public boolean containsPoint(double lat, double lon) {
+        return GeocellUtils.distance(center.getLat(), center.getLon(), lat, lon) <= radius;
+    }
+
+    public boolean intersects(MutableBoundingBox box) {
+        return GeocellUtils.minDistance(box, center.getLat(), center.getLon()) <= radius;
+    }
+
+    public boolean contains(MutableBoundingBox box) {
+        // Along a parallel or a meridian the distance to the center has no interior maximum,
+        // so the farthest point of the box is one of its corners.
+        return containsPoint(box.getNorth(), box.getEast()) && containsPoint(box.getNorth(), box.getWest())
+                && containsPoint(box.getSouth(), box.getEast()) && containsPoint(box.getSouth(), box.getWest());
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.model;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import com.beoui.geocell.GeocellInternPool;
+
+/**
+ * Immutable list of the geocells containing a point, from resolution 1 up to the resolution of
+ * the full geocell, as returned by GeocellUtils.generateGeocells().
+ *
+ * Only the characters of the full geocell are stored, in a single array shared by all the
+ * prefixes; the strings are created when they are read, from the intern pool if one is given.
+ *
+ */
+public class GeocellPrefixList extends AbstractList<String> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final char[] cell;
+    private final transient GeocellInternPool pool;
+
+    /**
+     * @param cell the characters of the full resolution geocell, not copied
+     * @param pool the pool of the prefix strings, or null to create new strings
+     */
+    public GeocellPrefixList(char[] cell, GeocellInternPool pool) {
+        this.cell = cell;
+        this.pool = pool;
+    }
+
+    /**
+     * @param index the index of the prefix, i.e. its resolution minus 1
+     * @return the geocell of the given resolution
+     */
+    @Override
+    public String get(int index) {
+        if(index < 0 || index >= cell.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + cell.length);
+        }
+        return pool != null ? pool.intern(cell, index + 1) : new String(cell, 0, index + 1);
+    }
+
+    @Override
+    public int size() {
+        return cell.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if(!(o instanceof String)) {
+            return false;
+        }
+        final String geocell = (String) o;
+        if(geocell.length() == 0 || geocell.length() > cell.length) {
+            return false;
+        }
+        for(int i = 0; i < geocell.length(); i++) {
+            if(geocell.charAt(i) != cell[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return contains(o) ? ((String) o).length() - 1 : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+}
@@ -87,4 +87,30 @@ public class GeocellQuery {
         return parameters;
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        GeocellQuery other = (GeocellQuery) obj;
+        return equal(baseQuery, other.baseQuery)
+                && equal(declaredParameters, other.declaredParameters)
+                && equal(parameters, other.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = baseQuery == null ? 0 : baseQuery.hashCode();
+        result = 31 * result + (declaredParameters == null ? 0 : declaredParameters.hashCode());
+        result = 31 * result + (parameters == null ? 0 : parameters.hashCode());
+        return result;
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
 }
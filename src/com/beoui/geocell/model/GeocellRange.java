@@ -0,0 +1,76 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.model;
+
+/**
+ * Contiguous range [min, max) of geocell strings.
+ * A stored geocell is in the range if and only if it starts with one of the cells the range was built from.
+ *
+ */
+public class GeocellRange {
+
+    /**
+     * Inclusive lower bound.
+     */
+    private String min;
+
+    /**
+     * Exclusive upper bound, or null if the range has no upper bound.
+     */
+    private String max;
+
+    public GeocellRange(String min, String max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    public String getMin() {
+        return min;
+    }
+
+    public String getMax() {
+        return max;
+    }
+
+    /**
+     * @param geocell a geocell string
+     * @return whether the geocell is in this range
+     */
+    public boolean contains(String geocell) {
+        return geocell.compareTo(min) >= 0 && (max == null || geocell.compareTo(max) < 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        GeocellRange other = (GeocellRange) obj;
+        return min.equals(other.min) && (max == null ? other.max == null : max.equals(other.max));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * min.hashCode() + (max == null ? 0 : max.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "[" + min + ", " + (max == null ? "" : max) + ")";
+    }
+
+}
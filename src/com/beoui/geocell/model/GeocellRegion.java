@@ -0,0 +1,44 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+*/
+
+package com.beoui.geocell.model;
+
+/**
+ * A region of the sphere that can be covered with geocells, see GeocellCoverer.
+ *
+ * The box tests may be approximate, but only in the safe direction: intersects may answer
+ * true for a box that is actually outside of the region (the cover is then slightly looser),
+ * and contains may answer false for a box that is actually inside (the cover is then refined
+ * further than needed).
+ *
+ */
+public interface GeocellRegion {
+
+    /**
+     * @return whether the point is inside the region
+     */
+    boolean containsPoint(double lat, double lon);
+
+    /**
+     * @param box a box, east greater than west
+     * @return false if the box is certainly outside of the region
+     */
+    boolean intersects(MutableBoundingBox box);
+
+    /**
+     * @param box a box, east greater than west
+     * @return true if the box is certainly inside the region
+     */
+    boolean contains(MutableBoundingBox box);
+
+}
@@ -0,0 +1,69 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+*/
+
+package com.beoui.geocell.model;
+
+/**
+ * Reusable bounding box holder, filled in place by the packed geocell methods
+ * so that hot loops don't allocate a new {@link BoundingBox} per cell.
+ *
+ * Unlike {@link BoundingBox}, north and south are stored as given.
+ *
+ */
+public class MutableBoundingBox {
+
+    private double north;
+    private double east;
+    private double south;
+    private double west;
+
+    public MutableBoundingBox() {
+
+    }
+
+    public MutableBoundingBox(double north, double east, double south, double west) {
+        set(north, east, south, west);
+    }
+
+    public MutableBoundingBox set(double north, double east, double south, double west) {
+        this.north = north;
+        this.east = east;
+        this.south = south;
+        this.west = west;
+        return this;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    public double getEast() {
+        return east;
+    }
+
+    public double getSouth() {
+        return south;
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    /**
+     * @return an immutable copy of this box
+     */
+    public BoundingBox toBoundingBox() {
+        return new BoundingBox(north, east, south, west);
+    }
+
+}
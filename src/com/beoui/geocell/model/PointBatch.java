@@ -0,0 +1,279 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+*/
+
+package com.beoui.geocell.model;
+
+import java.util.concurrent.ExecutorService;
+
+import com.beoui.geocell.PackedGeocellUtils;
+
+/**
+ * Columnar store of many points: parallel arrays of latitudes, longitudes, packed cells
+ * (see {@link PackedGeocellUtils}) and entity indexes, instead of one {@link Point} and one
+ * list of geocell strings per entity.
+ *
+ * Once the cells are computed and sorted, the points inside any cell form one contiguous run
+ * of indexes, found by binary search with {@link #lowerBound(long)} and {@link #upperBound(long)}.
+ * The entity index links each point back to the caller's own entity storage; it survives sorting.
+ *
+ * Not thread safe.
+ *
+ */
+public class PointBatch {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    // Below this size, sort with insertion sort.
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private double[] lats;
+    private double[] lons;
+    private long[] cells;
+    private int[] entityIndexes;
+    private int size;
+
+    public PointBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PointBatch(int capacity) {
+        lats = new double[capacity];
+        lons = new double[capacity];
+        cells = new long[capacity];
+        entityIndexes = new int[capacity];
+    }
+
+    /**
+     * Adds a point whose entity index is its position in the batch.
+     *
+     * @return the index of the point
+     */
+    public int add(double lat, double lon) {
+        return add(lat, lon, size);
+    }
+
+    /**
+     * Adds a point. Its cell is {@link PackedGeocellUtils#NO_CELL} until computeCells() is called.
+     *
+     * @param entityIndex index of the point's entity in the caller's storage
+     * @return the index of the point
+     */
+    public int add(double lat, double lon, int entityIndex) {
+        if(size == lats.length) {
+            resize(Math.max(DEFAULT_CAPACITY, size + (size >> 1)));
+        }
+        lats[size] = lat;
+        lons[size] = lon;
+        cells[size] = PackedGeocellUtils.NO_CELL;
+        entityIndexes[size] = entityIndex;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public double getLat(int index) {
+        checkIndex(index);
+        return lats[index];
+    }
+
+    public double getLon(int index) {
+        checkIndex(index);
+        return lons[index];
+    }
+
+    public long getCell(int index) {
+        checkIndex(index);
+        return cells[index];
+    }
+
+    public int getEntityIndex(int index) {
+        checkIndex(index);
+        return entityIndexes[index];
+    }
+
+    /**
+     * Backing arrays, for tight loops. Only the first size() elements are meaningful, and the
+     * arrays are replaced when the batch grows or is trimmed.
+     */
+    public double[] lats() {
+        return lats;
+    }
+
+    public double[] lons() {
+        return lons;
+    }
+
+    public long[] cells() {
+        return cells;
+    }
+
+    public int[] entityIndexes() {
+        return entityIndexes;
+    }
+
+    /**
+     * Shrinks the backing arrays to the size of the batch.
+     */
+    public void trimToSize() {
+        if(size < lats.length) {
+            resize(size);
+        }
+    }
+
+    /**
+     * Computes the packed cell of every point.
+     *
+     * @param resolution the resolution of the cells, at most PackedGeocellUtils.MAX_RESOLUTION
+     */
+    public void computeCells(int resolution) {
+        trimToSize();
+        PackedGeocellUtils.computeAll(lats, lons, resolution, cells);
+    }
+
+    /**
+     * Same as {@link #computeCells(int)}, split across the threads of the given executor and
+     * the calling thread.
+     */
+    public void computeCells(int resolution, ExecutorService executor) {
+        trimToSize();
+        PackedGeocellUtils.computeAll(lats, lons, resolution, cells, executor);
+    }
+
+    /**
+     * Sorts the points by cell, i.e. in Z-order, moving all the columns together.
+     * The order of points within a cell is unspecified.
+     */
+    public void sortByCell() {
+        sort(0, size - 1);
+    }
+
+    /**
+     * The batch must be sorted by cell.
+     *
+     * @param cell a packed cell, of any resolution up to the resolution of the points' cells
+     * @return the index of the first point inside the cell, or the index where such a point would be
+     */
+    public int lowerBound(long cell) {
+        return search(cell);
+    }
+
+    /**
+     * The batch must be sorted by cell.
+     *
+     * @param cell a packed cell, of any resolution up to the resolution of the points' cells
+     * @return the index after the last point inside the cell
+     */
+    public int upperBound(long cell) {
+        // Descendants share the cell's digits, with anything in the lower digits and resolution bits.
+        final long last = cell | ((1L << (63 - 4 * PackedGeocellUtils.resolution(cell))) - 1);
+        return last == Long.MAX_VALUE ? size : search(last + 1);
+    }
+
+    // Index of the first cell >= key.
+    private int search(long key) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            final int mid = (low + high) >>> 1;
+            if(cells[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Three-way quicksort on [from, to], so runs of equal cells are handled in linear time.
+    private void sort(int from, int to) {
+        while(to - from >= INSERTION_SORT_THRESHOLD) {
+            final long pivot = medianOfThree(cells[from], cells[(from + to) >>> 1], cells[to]);
+            int lt = from;
+            int gt = to;
+            int i = from;
+            while(i <= gt) {
+                if(cells[i] < pivot) {
+                    swap(lt++, i++);
+                } else if(cells[i] > pivot) {
+                    swap(i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            // Recurse into the smaller side to bound the stack depth.
+            if(lt - from < to - gt) {
+                sort(from, lt - 1);
+                from = gt + 1;
+            } else {
+                sort(gt + 1, to);
+                to = lt - 1;
+            }
+        }
+        for(int i = from + 1; i <= to; i++) {
+            for(int j = i; j > from && cells[j - 1] > cells[j]; j--) {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    private static long medianOfThree(long a, long b, long c) {
+        if(a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+
+    private void swap(int i, int j) {
+        final double lat = lats[i];
+        lats[i] = lats[j];
+        lats[j] = lat;
+        final double lon = lons[i];
+        lons[i] = lons[j];
+        lons[j] = lon;
+        final long cell = cells[i];
+        cells[i] = cells[j];
+        cells[j] = cell;
+        final int entityIndex = entityIndexes[i];
+        entityIndexes[i] = entityIndexes[j];
+        entityIndexes[j] = entityIndex;
+    }
+
+    // System.arraycopy rather than Arrays.copyOf, which needs Android API level 9.
+    private void resize(int capacity) {
+        final int length = Math.min(size, capacity);
+        final double[] newLats = new double[capacity];
+        System.arraycopy(lats, 0, newLats, 0, length);
+        lats = newLats;
+        final double[] newLons = new double[capacity];
+        System.arraycopy(lons, 0, newLons, 0, length);
+        lons = newLons;
+        final long[] newCells = new long[capacity];
+        System.arraycopy(cells, 0, newCells, 0, length);
+        cells = newCells;
+        final int[] newEntityIndexes = new int[capacity];
+        System.arraycopy(entityIndexes, 0, newEntityIndexes, 0, length);
+        entityIndexes = newEntityIndexes;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+*/
+
+package com.beoui.geocell.model;
+
+import java.util.List;
+
+/**
+ * Simple polygon whose edges are straight lines in latitude/longitude coordinates.
+ * It must not cross the antimeridian nor contain a pole.
+ *
+ */
+public class PolygonRegion implements GeocellRegion {
+
+    private final double[] lats;
+    private final double[] lons;
+    private double north = Double.NEGATIVE_INFINITY;
+    private double east = Double.NEGATIVE_INFINITY;
+    private double south = Double.POSITIVE_INFINITY;
+    private double west = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param vertices the vertices of the polygon, at least 3, in either order; the last vertex
+     *            is connected to the first one
+     */
+    public PolygonRegion(List<Point> vertices) {
+        if(vertices.size() < 3) {
+            throw new IllegalArgumentException("A polygon needs at least 3 vertices");
+        }
+        lats = new double[vertices.size()];
+        lons = new double[vertices.size()];
+        for(int i = 0; i < lats.length; i++) {
+            lats[i] = vertices.get(i).getLat();
+            lons[i] = vertices.get(i).getLon();
+            north = Math.max(north, lats[i]);
+            east = Math.max(east, lons[i]);
+            south = Math.min(south, lats[i]);
+            west = Math.min(west, lons[i]);
+        }
+    }
+
+    public BoundingBox getBoundingBox() {
+        return new BoundingBox(north, east, south, west);
+    }
+
+    public boolean containsPoint(double lat, double lon) {
+        // Even-odd rule.
+        boolean inside = false;
+        for(int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+            if((lats[i] > lat) != (lats[j] > lat)
+                    && lon < (lons[j] - lons[i]) * (lat - lats[i]) / (lats[j] - lats[i]) + lons[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    public boolean intersects(MutableBoundingBox box) {
+        if(box.getSouth() > north || box.getNorth() < south || box.getWest() > east || box.getEast() < west) {
+            return false;
+        }
+        if(containsPoint(box.getSouth(), box.getWest())) {
+            return true;
+        }
+        for(int i = 0; i < lats.length; i++) {
+            if(lats[i] >= box.getSouth() && lats[i] <= box.getNorth() && lons[i] >= box.getWest() && lons[i] <= box.getEast()) {
+                return true;
+            }
+        }
+        return crossesBoxEdge(box);
+    }
+
+    public boolean contains(MutableBoundingBox box) {
+        if(box.getSouth() < south || box.getNorth() > north || box.getWest() < west || box.getEast() > east) {
+            return false;
+        }
+        return containsPoint(box.getSouth(), box.getWest()) && !crossesBoxEdge(box);
+    }
+
+    // Whether an edge of the polygon intersects an edge of the box.
+    private boolean crossesBoxEdge(MutableBoundingBox box) {
+        final double n = box.getNorth();
+        final double e = box.getEast();
+        final double s = box.getSouth();
+        final double w = box.getWest();
+        for(int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+            if(segmentsIntersect(lats[j], lons[j], lats[i], lons[i], s, w, s, e)
+                    || segmentsIntersect(lats[j], lons[j], lats[i], lons[i], s, e, n, e)
+                    || segmentsIntersect(lats[j], lons[j], lats[i], lons[i], n, e, n, w)
+                    || segmentsIntersect(lats[j], lons[j], lats[i], lons[i], n, w, s, w)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean segmentsIntersect(double y1, double x1, double y2, double x2,
+            double y3, double x3, double y4, double x4) {
+        final double d1 = orientation(x3, y3, x4, y4, x1, y1);
+        final double d2 = orientation(x3, y3, x4, y4, x2, y2);
+        final double d3 = orientation(x1, y1, x2, y2, x3, y3);
+        final double d4 = orientation(x1, y1, x2, y2, x4, y4);
+        if(((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+            return true;
+        }
+        // Touching or collinear segments.
+        return (d1 == 0 && onSegment(x3, y3, x4, y4, x1, y1)) || (d2 == 0 && onSegment(x3, y3, x4, y4, x2, y2))
+                || (d3 == 0 && onSegment(x1, y1, x2, y2, x3, y3)) || (d4 == 0 && onSegment(x1, y1, x2, y2, x4, y4));
+    }
+
+    private static double orientation(double ax, double ay, double bx, double by, double cx, double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+        return Math.min(ax, bx) <= px && px <= Math.max(ax, bx) && Math.min(ay, by) <= py && py <= Math.max(ay, by);
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+*/
+
+package com.beoui.geocell.model;
+
+/**
+ * All points of a bounding box, east greater than west.
+ *
+ */
+public class RectangleRegion implements GeocellRegion {
+
+    private BoundingBox bbox;
+
+    public RectangleRegion(BoundingBox bbox) {
+        if(bbox.getEast() < bbox.getWest()) {
+            throw new IllegalArgumentException("Split rectangles crossing the antimeridian in two");
+        }
+        this.bbox = bbox;
+    }
+
+    public BoundingBox getBoundingBox() {
+        return bbox;
+    }
+
+    public boolean containsPoint(double lat, double lon) {
+        return lat >= bbox.getSouth() && lat <= bbox.getNorth() && lon >= bbox.getWest() && lon <= bbox.getEast();
+    }
+
+    public boolean intersects(MutableBoundingBox box) {
+        return box.getSouth() <= bbox.getNorth() && box.getNorth() >= bbox.getSouth()
+                && box.getWest() <= bbox.getEast() && box.getEast() >= bbox.getWest();
+    }
+
+    public boolean contains(MutableBoundingBox box) {
+        return box.getSouth() >= bbox.getSouth() && box.getNorth() <= bbox.getNorth()
+                && box.getWest() >= bbox.getWest() && box.getEast() <= bbox.getEast();
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened during one geocell operation: the cells planned, the resolution and cost
+ * chosen, the backend queries with their latency, and the entities fetched versus returned.
+ *
+ * Traces are created by {@link GeocellTracing#start(String)}, filled by the operation on its
+ * own thread, then handed to the sink. When tracing is off, operations get a disabled trace
+ * that ignores everything.
+ *
+ */
+public final class GeocellTrace {
+
+    static final GeocellTrace DISABLED = new GeocellTrace(null, false);
+
+    private final String operation;
+    private final boolean enabled;
+    private final long startNanos;
+    private long durationNanos;
+    private int resolution = -1;
+    private double cost = Double.NaN;
+    private final List<String> cells = new ArrayList<String>();
+    private final List<CellQuery> queries = new ArrayList<CellQuery>();
+    private int entitiesFetched;
+    private int entitiesReturned;
+
+    GeocellTrace(String operation, boolean enabled) {
+        this.operation = operation;
+        this.enabled = enabled;
+        this.startNanos = enabled ? System.nanoTime() : 0;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds cells planned by the operation.
+     */
+    public void addCells(List<String> planned) {
+        if(enabled) {
+            cells.addAll(planned);
+        }
+    }
+
+    public void setResolution(int resolution) {
+        if(enabled) {
+            this.resolution = resolution;
+        }
+    }
+
+    public void setCost(double cost) {
+        if(enabled) {
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Records a query sent to the GeocellQueryEngine.
+     *
+     * @param cellCount the number of cells queried
+     * @param nanos the duration of the query
+     * @param entities the number of entities it returned
+     */
+    public void addQuery(int cellCount, long nanos, int entities) {
+        if(enabled) {
+            queries.add(new CellQuery(cellCount, nanos, entities));
+            entitiesFetched += entities;
+        }
+    }
+
+    /**
+     * @param entities the number of entities the operation returned, after filtering
+     */
+    public void setEntitiesReturned(int entities) {
+        if(enabled) {
+            this.entitiesReturned = entities;
+        }
+    }
+
+    void finish() {
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return the resolution chosen, or -1 if none
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return the cost of the plan, or NaN if the operation has no cost function
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    public List<String> getCells() {
+        return Collections.unmodifiableList(cells);
+    }
+
+    public List<CellQuery> getQueries() {
+        return Collections.unmodifiableList(queries);
+    }
+
+    public int getEntitiesFetched() {
+        return entitiesFetched;
+    }
+
+    public int getEntitiesReturned() {
+        return entitiesReturned;
+    }
+
+    /**
+     * One query sent to the GeocellQueryEngine.
+     */
+    public static final class CellQuery {
+
+        private final int cellCount;
+        private final long nanos;
+        private final int entities;
+
+        CellQuery(int cellCount, long nanos, int entities) {
+            this.cellCount = cellCount;
+            this.nanos = nanos;
+            this.entities = entities;
+        }
+
+        public int getCellCount() {
+            return cellCount;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the query latency divided among its cells
+         */
+        public long getNanosPerCell() {
+            return cellCount == 0 ? nanos : nanos / cellCount;
+        }
+
+        public int getEntities() {
+            return entities;
+        }
+    }
+
+}
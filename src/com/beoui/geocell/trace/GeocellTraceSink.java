@@ -0,0 +1,26 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.trace;
+
+/**
+ * Receives the trace of every geocell operation once it is complete, see
+ * {@link GeocellTracing#setSink(GeocellTraceSink)}. Called on the thread that ran the
+ * operation, so implementations must be thread safe and fast.
+ *
+ */
+public interface GeocellTraceSink {
+
+    void onTrace(GeocellTrace trace);
+
+}
@@ -0,0 +1,59 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.trace;
+
+/**
+ * Global entry point of geocell tracing. Operations call {@link #start(String)} and
+ * {@link #finish(GeocellTrace)}; applications choose where traces go with
+ * {@link #setSink(GeocellTraceSink)}. Tracing is off (NoOpTraceSink) by default.
+ *
+ */
+public final class GeocellTracing {
+
+    private static volatile GeocellTraceSink sink = NoOpTraceSink.INSTANCE;
+
+    private GeocellTracing() {
+        // no instantiation allowed
+    }
+
+    /**
+     * @param newSink the sink receiving the traces from now on, or null to turn tracing off
+     */
+    public static void setSink(GeocellTraceSink newSink) {
+        sink = newSink != null ? newSink : NoOpTraceSink.INSTANCE;
+    }
+
+    public static GeocellTraceSink getSink() {
+        return sink;
+    }
+
+    /**
+     * @param operation the name of the operation, e.g. "proximitySearch"
+     * @return a new trace, or a disabled one if tracing is off
+     */
+    public static GeocellTrace start(String operation) {
+        return sink == NoOpTraceSink.INSTANCE ? GeocellTrace.DISABLED : new GeocellTrace(operation, true);
+    }
+
+    /**
+     * Completes the trace and hands it to the sink.
+     */
+    public static void finish(GeocellTrace trace) {
+        if(trace.isEnabled()) {
+            trace.finish();
+            sink.onTrace(trace);
+        }
+    }
+
+}
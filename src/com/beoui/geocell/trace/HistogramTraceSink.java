@@ -0,0 +1,159 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.beoui.geocell.PackedGeocellUtils;
+
+/**
+ * Sink aggregating traces into in-memory histograms, cheap enough to stay on in production.
+ * Tells apart slow searches caused by planning many cells, by over-fetching (many more
+ * entities fetched than returned) or by backend latency.
+ *
+ */
+public class HistogramTraceSink implements GeocellTraceSink {
+
+    private final Histogram duration = new Histogram();
+    private final Histogram cellsPlanned = new Histogram();
+    private final Histogram queryLatency = new Histogram();
+    private final Histogram cellLatency = new Histogram();
+    private final Histogram entitiesFetched = new Histogram();
+    private final Histogram entitiesReturned = new Histogram();
+    private final AtomicLongArray resolutions = new AtomicLongArray(PackedGeocellUtils.MAX_RESOLUTION + 2);
+
+    public void onTrace(GeocellTrace trace) {
+        duration.record(trace.getDurationNanos());
+        cellsPlanned.record(trace.getCells().size());
+        for(final GeocellTrace.CellQuery query : trace.getQueries()) {
+            queryLatency.record(query.getNanos());
+            cellLatency.record(query.getNanosPerCell());
+        }
+        if(!trace.getQueries().isEmpty()) {
+            entitiesFetched.record(trace.getEntitiesFetched());
+            entitiesReturned.record(trace.getEntitiesReturned());
+        }
+        final int resolution = trace.getResolution();
+        resolutions.incrementAndGet(resolution >= 0 && resolution < resolutions.length() - 1 ? resolution : resolutions.length() - 1);
+    }
+
+    /**
+     * @return the duration of the operations, in nanoseconds
+     */
+    public Histogram getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the number of cells planned per operation
+     */
+    public Histogram getCellsPlanned() {
+        return cellsPlanned;
+    }
+
+    /**
+     * @return the latency of each backend query, in nanoseconds
+     */
+    public Histogram getQueryLatency() {
+        return queryLatency;
+    }
+
+    /**
+     * @return the latency of each backend query divided among its cells, in nanoseconds
+     */
+    public Histogram getCellLatency() {
+        return cellLatency;
+    }
+
+    /**
+     * @return the number of entities fetched per operation
+     */
+    public Histogram getEntitiesFetched() {
+        return entitiesFetched;
+    }
+
+    /**
+     * @return the number of entities returned per operation, after filtering
+     */
+    public Histogram getEntitiesReturned() {
+        return entitiesReturned;
+    }
+
+    /**
+     * @param resolution a resolution, or -1 for the operations without one
+     * @return the number of operations that chose this resolution
+     */
+    public long getResolutionCount(int resolution) {
+        return resolutions.get(resolution >= 0 && resolution < resolutions.length() - 1 ? resolution : resolutions.length() - 1);
+    }
+
+    /**
+     * Histogram of non-negative values with power of two buckets: percentiles are accurate
+     * within a factor of 2, which is plenty to spot outliers. Thread safe.
+     */
+    public static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while(value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMean() {
+            final long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return an upper bound of the given percentile, at most twice the actual value
+         */
+        public long getPercentile(double percentile) {
+            final long n = count.get();
+            if(n == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for(int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if(seen >= rank) {
+                    // Bucket i holds the values of i bits.
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+    }
+
+}
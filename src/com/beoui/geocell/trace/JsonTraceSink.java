@@ -0,0 +1,106 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.trace;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Sink writing every trace as one line of JSON, e.g. to a file pulled from the device when
+ * investigating slow screens:
+ * <pre>
+ * {"operation":"proximitySearch","durationMicros":5321,"resolution":13,"cost":null,
+ *  "cells":["8e6187fe6187f"],"entitiesFetched":12,"entitiesReturned":10,
+ *  "queries":[{"cells":1,"micros":5010,"entities":12}]}
+ * </pre>
+ * Like PrintWriter, write errors are not thrown; check them with {@link #checkError()}.
+ *
+ */
+public class JsonTraceSink implements GeocellTraceSink {
+
+    private final PrintWriter out;
+
+    public JsonTraceSink(Writer writer) {
+        this.out = new PrintWriter(writer);
+    }
+
+    public void onTrace(GeocellTrace trace) {
+        final StringBuilder json = new StringBuilder(256);
+        json.append("{\"operation\":");
+        appendString(json, trace.getOperation());
+        json.append(",\"durationMicros\":").append(trace.getDurationNanos() / 1000);
+        json.append(",\"resolution\":").append(trace.getResolution());
+        json.append(",\"cost\":");
+        final double cost = trace.getCost();
+        if(Double.isNaN(cost) || Double.isInfinite(cost) || cost == Double.MAX_VALUE) {
+            json.append("null");
+        } else {
+            json.append(cost);
+        }
+        json.append(",\"cells\":[");
+        final List<String> cells = trace.getCells();
+        for(int i = 0; i < cells.size(); i++) {
+            if(i > 0) {
+                json.append(',');
+            }
+            appendString(json, cells.get(i));
+        }
+        json.append("],\"entitiesFetched\":").append(trace.getEntitiesFetched());
+        json.append(",\"entitiesReturned\":").append(trace.getEntitiesReturned());
+        json.append(",\"queries\":[");
+        final List<GeocellTrace.CellQuery> queries = trace.getQueries();
+        for(int i = 0; i < queries.size(); i++) {
+            final GeocellTrace.CellQuery query = queries.get(i);
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append("{\"cells\":").append(query.getCellCount())
+                    .append(",\"micros\":").append(query.getNanos() / 1000)
+                    .append(",\"entities\":").append(query.getEntities()).append('}');
+        }
+        json.append("]}");
+        synchronized(out) {
+            out.println(json);
+            out.flush();
+        }
+    }
+
+    /**
+     * @return whether writing a trace has failed
+     */
+    public boolean checkError() {
+        return out.checkError();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if(value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if(c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+Copyright 2010 Alexandre Gellibert
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at http://www.apache.org/licenses/
+LICENSE-2.0 Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an "AS IS"
+BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+implied. See the License for the specific language governing permissions
+and limitations under the License.
+ */
+
+package com.beoui.geocell.trace;
+
+/**
+ * Default sink: tracing is off and operations don't record anything.
+ *
+ */
+public final class NoOpTraceSink implements GeocellTraceSink {
+
+    public static final NoOpTraceSink INSTANCE = new NoOpTraceSink();
+
+    private NoOpTraceSink() {
+        // use INSTANCE
+    }
+
+    public void onTrace(GeocellTrace trace) {
+        // nothing to do
+    }
+
+}
@@ -21,7 +21,9 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import qr.cloud.library.R;
@@ -37,6 +39,11 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.actionbarsherlock.internal.ResourcesCompat;
+import com.beoui.geocell.GeocellClusterer;
+import com.beoui.geocell.GeocellRangeUtils;
+import com.beoui.geocell.model.GeocellRange;
+import com.google.cloud.backend.android.CloudEntity;
+import com.google.cloud.backend.android.F;
 
 public class QRCloudUtils {
 	public static final boolean DEBUG = false; // TODO: ensure this is false for Play Store release
@@ -186,6 +193,53 @@ public class QRCloudUtils {
 		return (((int) distance + 1) / 2 * 2) + " metres"; // round up to 2m
 	}
 
+	// merges the given cells into key ranges on DATABASE_PROP_GEOCELL - each filter is a single range scan, rather
+	// than one index lookup per cell for F.in (combine with F.or, or run one query per filter)
+	public static List<F> getGeocellRangeFilters(List<String> geocells) {
+		List<F> filters = new ArrayList<F>();
+		for (GeocellRange range : GeocellRangeUtils.toRanges(geocells)) {
+			F lowerBound = F.ge(DATABASE_PROP_GEOCELL, range.getMin());
+			if (range.getMax() == null) {
+				filters.add(lowerBound);
+			} else {
+				filters.add(F.and(lowerBound, F.lt(DATABASE_PROP_GEOCELL, range.getMax())));
+			}
+		}
+		return filters;
+	}
+
+	// adds the given entities (e.g., from CloudBackend.list) to the map marker clusterer, using their stored geocell -
+	// entities without a geocell are skipped; those without a location are placed at the centre of their cell
+	public static void addToClusterer(GeocellClusterer<CloudEntity> clusterer, List<CloudEntity> entities) {
+		for (CloudEntity entity : entities) {
+			Object geocell = entity.get(DATABASE_PROP_GEOCELL);
+			if (geocell == null || GEOCELL_LOADING_MAGIC_VALUE.equals(geocell)) {
+				continue;
+			}
+			Double latitude = toDouble(entity.get(DATABASE_PROP_LATITUDE));
+			Double longitude = toDouble(entity.get(DATABASE_PROP_LONGITUDE));
+			if (latitude != null && longitude != null) {
+				clusterer.add(entity, geocell.toString(), latitude, longitude);
+			} else {
+				clusterer.add(entity, geocell.toString());
+			}
+		}
+	}
+
+	// the backend returns numeric properties as Number or String depending on how they were stored
+	private static Double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (value != null) {
+			try {
+				return Double.valueOf(value.toString());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return null;
+	}
+
 	public static String toDisplayCase(String s) {
 		if (s == null) {
 			return "";